@@ -0,0 +1,77 @@
+package technology.unrelenting.clarke;
+
+import me.qmx.jitescript.JDKVersion;
+import me.qmx.jitescript.JiteClass;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Startup cost of the classes the compiler writes. "jitescript" is the old output: Java 6
+// class files whose frames ASM infers from the bytecode when they are written; the numbered
+// targets are written by ClarkeClass with the frames recorded by the code generator.
+// write generates and serializes the program, load defines and links (verifies) every class.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ClassLoadingBenchmark {
+
+    @Param({"jitescript", "8", "17"})
+    public String target;
+
+    @Param({"1000"})
+    public int words;
+
+    private CompilerOptions options;
+    private Map<String, ClarkeParser.ClassDefinitionContext> parsedClasses;
+    private Map<String, byte[]> classBytes;
+
+    @Setup
+    public void setUp() throws CompilerException {
+        options = new CompilerOptions();
+        if (!target.equals("jitescript"))
+            options.target = Integer.parseInt(target);
+        ClassGenerator generator = new ClassGenerator(options);
+        Compiler.parse(CompileBenchmark.syntheticProgram(words), generator);
+        parsedClasses = generator.classesToCompile;
+        classBytes = write();
+    }
+
+    @Benchmark
+    public Map<String, byte[]> write() throws CompilerException {
+        Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        for (JiteClass jiteClass : new ClassGenerator(options, new HashMap<String, Map<String, Class[]>>(), parsedClasses).generate())
+            result.put(jiteClass.getClassName(), target.equals("jitescript") ? jiteClass.toBytes(JDKVersion.V1_6) : jiteClass.toBytes());
+        return result;
+    }
+
+    @Benchmark
+    public int load() throws ClassNotFoundException {
+        BytesClassLoader loader = new BytesClassLoader(classBytes);
+        int methods = 0;
+        for (String className : classBytes.keySet())
+            methods += Class.forName(className, true, loader).getDeclaredMethods().length;
+        return methods;
+    }
+
+    private static class BytesClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classBytes;
+
+        BytesClassLoader(Map<String, byte[]> classBytes) {
+            super(ClassLoadingBenchmark.class.getClassLoader());
+            this.classBytes = classBytes;
+        }
+
+        @Override protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classBytes.get(name);
+            if (bytes == null)
+                throw new ClassNotFoundException(name);
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package technology.unrelenting.clarke;
+
+import me.qmx.jitescript.JiteClass;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Compile throughput on large generated programs: every class has 100 small words
+// that shuffle, compute and call the previous word. compile includes parsing,
+// generate only runs the code generator on parse trees prepared in advance.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class CompileBenchmark {
+
+    @Param({"1000", "10000"})
+    public int words;
+
+    @Param({"0", "1"})
+    public int optimizationLevel;
+
+    private String source;
+    private CompilerOptions options;
+    private Map<String, ClarkeParser.ClassDefinitionContext> parsedClasses;
+
+    static String syntheticProgram(int words) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i % 100 == 0)
+                source.append("class Synthetic").append(i / 100).append(";\n");
+            source.append("w").append(i).append(" ∷ int int → int = over over + rot - 3 * swap 7 % +");
+            if (i % 100 != 0)
+                source.append(" dup dup w").append(i - 1).append(" +");
+            source.append(" dup 0 < { 0 swap - } when;\n");
+        }
+        return source.toString();
+    }
+
+    @Setup
+    public void setUp() {
+        source = syntheticProgram(words);
+        options = new CompilerOptions();
+        options.optimizationLevel = optimizationLevel;
+        ClassGenerator generator = new ClassGenerator(options);
+        Compiler.parse(source, generator);
+        parsedClasses = generator.classesToCompile;
+    }
+
+    @Benchmark
+    public List<JiteClass> compile() throws CompilerException {
+        return Compiler.compileClasses(source, options);
+    }
+
+    @Benchmark
+    public List<JiteClass> generate() throws CompilerException {
+        return new ClassGenerator(options, new HashMap<String, Map<String, Class[]>>(), parsedClasses).generate();
+    }
+
+}
@@ -0,0 +1,215 @@
+package technology.unrelenting.clarke;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+// Speed of the code Clarke generates: the README examples and a few numeric kernels,
+// each next to the same method written in Java. Both sides are called through
+// MethodHandles so the only difference is the bytecode behind them.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ExecutionBenchmark {
+
+    static final String SOURCE =
+            "class Kernels;\n" +
+            "gcd ∷ int int → int = { swap over % } { dup 0 ≠ } while pop;\n" +
+            "multiplyAndSquare ∷ int int → int = * dup *;\n" +
+            "lengthCheck ∷ int → java.lang.String = 15 ≥ { \"Your password is too short\" } { \"OK\" } if;\n" +
+            "sum ∷ int → int = 0 swap { dup rot + swap 1 - } { dup 0 > } while pop;\n" +
+            "fib ∷ int → long = 0L 1L rot { -rot tuck + rot 1 - } { dup 0 > } while pop pop;\n" +
+            "collatz ∷ long → int = 0 swap { dup 2L % 0L == { 3L * 1L + } { 2L / } if swap 1 + swap } { dup 1L ≠ } while pop;\n" +
+            "sqrt ∷ double → double = dup 20 { -rot 2dup / + 0.5 * rot 1 - } { dup 0 > } while pop nip;\n";
+
+    public static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    public static int multiplyAndSquare(int a, int b) {
+        int product = a * b;
+        return product * product;
+    }
+
+    public static String lengthCheck(int length) {
+        return length >= 15 ? "OK" : "Your password is too short";
+    }
+
+    public static int sum(int n) {
+        int sum = 0;
+        for (; n > 0; n--)
+            sum += n;
+        return sum;
+    }
+
+    public static long fib(int n) {
+        long a = 0, b = 1;
+        for (; n > 0; n--) {
+            long next = a + b;
+            a = b;
+            b = next;
+        }
+        return a;
+    }
+
+    public static int collatz(long n) {
+        int steps = 0;
+        for (; n != 1; steps++)
+            n = n % 2 == 0 ? n / 2 : n * 3 + 1;
+        return steps;
+    }
+
+    public static double sqrt(double x) {
+        double guess = x;
+        for (int i = 20; i > 0; i--)
+            guess = (guess + x / guess) * 0.5;
+        return guess;
+    }
+
+    @Param({"0", "2"})
+    public int optimizationLevel;
+
+    public int a = 1071;
+    public int b = 462;
+    public int length = 12;
+    public int n = 1000;
+    public int fibN = 80;
+    public long collatzStart = 837799;
+    public double x = 2.0;
+
+    private MethodHandle clarkeGcd, clarkeMultiplyAndSquare, clarkeLengthCheck, clarkeSum, clarkeFib,
+            clarkeCollatz, clarkeSqrt;
+    private MethodHandle javaGcd, javaMultiplyAndSquare, javaLengthCheck, javaSum, javaFib, javaCollatz, javaSqrt;
+
+    @Setup
+    public void setUp()
+        throws Throwable {
+        CompilerOptions options = new CompilerOptions();
+        options.optimizationLevel = optimizationLevel;
+        CompiledProgram program = new CompiledProgram(Compiler.compileClasses(SOURCE, options),
+                ExecutionBenchmark.class.getClassLoader());
+        clarkeGcd = program.entryPoint("Kernels", "gcd");
+        clarkeMultiplyAndSquare = program.entryPoint("Kernels", "multiplyAndSquare");
+        clarkeLengthCheck = program.entryPoint("Kernels", "lengthCheck");
+        clarkeSum = program.entryPoint("Kernels", "sum");
+        clarkeFib = program.entryPoint("Kernels", "fib");
+        clarkeCollatz = program.entryPoint("Kernels", "collatz");
+        clarkeSqrt = program.entryPoint("Kernels", "sqrt");
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        javaGcd = lookup.findStatic(ExecutionBenchmark.class, "gcd", clarkeGcd.type());
+        javaMultiplyAndSquare = lookup.findStatic(ExecutionBenchmark.class, "multiplyAndSquare", clarkeMultiplyAndSquare.type());
+        javaLengthCheck = lookup.findStatic(ExecutionBenchmark.class, "lengthCheck", clarkeLengthCheck.type());
+        javaSum = lookup.findStatic(ExecutionBenchmark.class, "sum", clarkeSum.type());
+        javaFib = lookup.findStatic(ExecutionBenchmark.class, "fib", clarkeFib.type());
+        javaCollatz = lookup.findStatic(ExecutionBenchmark.class, "collatz", clarkeCollatz.type());
+        javaSqrt = lookup.findStatic(ExecutionBenchmark.class, "sqrt", clarkeSqrt.type());
+        // a benchmark of wrong code is worse than none
+        check("gcd", clarkeGcd.invoke(a, b), gcd(a, b));
+        check("multiplyAndSquare", clarkeMultiplyAndSquare.invoke(a, b), multiplyAndSquare(a, b));
+        check("lengthCheck", clarkeLengthCheck.invoke(length), lengthCheck(length));
+        check("sum", clarkeSum.invoke(n), sum(n));
+        check("fib", clarkeFib.invoke(fibN), fib(fibN));
+        check("collatz", clarkeCollatz.invoke(collatzStart), collatz(collatzStart));
+        check("sqrt", clarkeSqrt.invoke(x), sqrt(x));
+    }
+
+    private static void check(String name, Object clarke, Object java) {
+        if (!clarke.equals(java))
+            throw new IllegalStateException(name + " returned " + clarke + ", expected " + java);
+    }
+
+    @Benchmark
+    public int clarkeGcd()
+        throws Throwable {
+        return (int) clarkeGcd.invokeExact(a, b);
+    }
+
+    @Benchmark
+    public int javaGcd()
+        throws Throwable {
+        return (int) javaGcd.invokeExact(a, b);
+    }
+
+    @Benchmark
+    public int clarkeMultiplyAndSquare()
+        throws Throwable {
+        return (int) clarkeMultiplyAndSquare.invokeExact(a, b);
+    }
+
+    @Benchmark
+    public int javaMultiplyAndSquare()
+        throws Throwable {
+        return (int) javaMultiplyAndSquare.invokeExact(a, b);
+    }
+
+    @Benchmark
+    public String clarkeLengthCheck()
+        throws Throwable {
+        return (String) clarkeLengthCheck.invokeExact(length);
+    }
+
+    @Benchmark
+    public String javaLengthCheck()
+        throws Throwable {
+        return (String) javaLengthCheck.invokeExact(length);
+    }
+
+    @Benchmark
+    public int clarkeSum()
+        throws Throwable {
+        return (int) clarkeSum.invokeExact(n);
+    }
+
+    @Benchmark
+    public int javaSum()
+        throws Throwable {
+        return (int) javaSum.invokeExact(n);
+    }
+
+    @Benchmark
+    public long clarkeFib()
+        throws Throwable {
+        return (long) clarkeFib.invokeExact(fibN);
+    }
+
+    @Benchmark
+    public long javaFib()
+        throws Throwable {
+        return (long) javaFib.invokeExact(fibN);
+    }
+
+    @Benchmark
+    public int clarkeCollatz()
+        throws Throwable {
+        return (int) clarkeCollatz.invokeExact(collatzStart);
+    }
+
+    @Benchmark
+    public int javaCollatz()
+        throws Throwable {
+        return (int) javaCollatz.invokeExact(collatzStart);
+    }
+
+    @Benchmark
+    public double clarkeSqrt()
+        throws Throwable {
+        return (double) clarkeSqrt.invokeExact(x);
+    }
+
+    @Benchmark
+    public double javaSqrt()
+        throws Throwable {
+        return (double) javaSqrt.invokeExact(x);
+    }
+
+}
@@ -0,0 +1,87 @@
+package technology.unrelenting.clarke;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.TimeUnit;
+
+// Loops that call Math.max and String.length on every element. With target 8 the calls are
+// invokedynamic call sites linked by ClarkeBootstrap, with target 6 plain invokestatic and
+// invokevirtual instructions; once the call sites are linked, both should be as fast.
+// The Java versions are there for reference.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class InteropBenchmark {
+
+    static final String SOURCE =
+            "class Interop;\n" +
+            "maximum ∷ long[] → long = 0L { java.lang.Math.max } fold;\n" +
+            "totalLength ∷ java.lang.String[] → int = 0 { #length + } fold;\n";
+
+    public static long maximum(long[] values) {
+        long maximum = 0L;
+        for (long value : values)
+            maximum = Math.max(maximum, value);
+        return maximum;
+    }
+
+    public static int totalLength(String[] strings) {
+        int total = 0;
+        for (String string : strings)
+            total += string.length();
+        return total;
+    }
+
+    @Param({"6", "8"})
+    public int target;
+
+    public long[] values = new long[1000];
+    public String[] strings = new String[1000];
+
+    private MethodHandle clarkeMaximum, clarkeTotalLength, javaMaximum, javaTotalLength;
+
+    @Setup
+    public void setUp()
+        throws Throwable {
+        CompilerOptions options = new CompilerOptions();
+        options.target = target;
+        CompiledProgram program = new CompiledProgram(Compiler.compileClasses(SOURCE, options),
+                InteropBenchmark.class.getClassLoader());
+        clarkeMaximum = program.entryPoint("Interop", "maximum");
+        clarkeTotalLength = program.entryPoint("Interop", "totalLength");
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        javaMaximum = lookup.findStatic(InteropBenchmark.class, "maximum", clarkeMaximum.type());
+        javaTotalLength = lookup.findStatic(InteropBenchmark.class, "totalLength", clarkeTotalLength.type());
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i * 7919) % 1000;
+            strings[i] = Integer.toString(i);
+        }
+        if ((long) clarkeMaximum.invoke(values) != maximum(values) || (int) clarkeTotalLength.invoke(strings) != totalLength(strings))
+            throw new IllegalStateException("Interop computes wrong results");
+    }
+
+    @Benchmark
+    public long staticCall() throws Throwable {
+        return (long) clarkeMaximum.invoke(values);
+    }
+
+    @Benchmark
+    public long javaStaticCall() throws Throwable {
+        return (long) javaMaximum.invoke(values);
+    }
+
+    @Benchmark
+    public int virtualCall() throws Throwable {
+        return (int) clarkeTotalLength.invoke(strings);
+    }
+
+    @Benchmark
+    public int javaVirtualCall() throws Throwable {
+        return (int) javaTotalLength.invoke(strings);
+    }
+
+}
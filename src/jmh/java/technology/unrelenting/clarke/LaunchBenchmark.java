@@ -0,0 +1,78 @@
+package technology.unrelenting.clarke;
+
+import me.qmx.jitescript.JiteClass;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Wall time of running a compiled program as a new JVM, from its jar and through the launcher
+// --cds writes, which maps the classes of a training run from an archive. The program is the
+// synthetic one from CompileBenchmark with a main method that calls a method of every class.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LaunchBenchmark {
+
+    @Param({"false", "true"})
+    public boolean cds;
+
+    @Param({"100000"})
+    public int words;
+
+    private Path directory;
+    private String[] command;
+
+    static String programWithMain(int words) {
+        StringBuilder source = new StringBuilder(CompileBenchmark.syntheticProgram(words));
+        source.append("class Main;\nmain ∷ java.lang.String[] = length");
+        for (int i = 99; i < words; i += 100)
+            source.append(" dup dup Synthetic").append(i / 100).append(".w").append(i).append(" pop");
+        source.append(" println;\n");
+        return source.toString();
+    }
+
+    @Setup
+    public void setUp()
+        throws CompilerException, IOException, InterruptedException {
+        Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+        for (JiteClass jiteClass : Compiler.compileClasses(programWithMain(words)))
+            classes.put(jiteClass.getClassName(), jiteClass.toBytes());
+        directory = Files.createTempDirectory("clarke-launch");
+        Path jar = directory.resolve("program.jar");
+        Compiler.writeJar(jar, classes);
+        if (cds) {
+            command = new String[] { CdsArchive.create(jar, "Main").toString() };
+        } else {
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            command = new String[] { java, "-cp", jar.toString(), "Main" };
+        }
+        if (launch() != 0)
+            throw new IllegalStateException("Main fails");
+    }
+
+    @TearDown
+    public void tearDown()
+        throws IOException {
+        for (Path path : Files.newDirectoryStream(directory))
+            Files.delete(path);
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public int launch()
+        throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        while (process.getInputStream().read() >= 0) {
+        }
+        return process.waitFor();
+    }
+
+}
@@ -0,0 +1,155 @@
+package technology.unrelenting.clarke;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// The same sum written as a while loop that counts down on the stack, as a times loop,
+// whose index lives in a local of its own, and in Java. The NotUnrolled variants run with
+// loop unrolling turned off; the difference to the normal ones is what HotSpot gains from
+// unrolling each loop, which it only does for loops it recognized as counted.
+// The array loops map and fold are compared to Java loops with and without superword
+// (auto-vectorization) the same way.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class LoopBenchmark {
+
+    static final String SOURCE =
+            "class Loops;\n" +
+            "whileSum ∷ int → int = 0 swap { dup rot + swap 1 - } { dup 0 > } while pop;\n" +
+            "timesSum ∷ int → int = 0 swap { index + } times;\n" +
+            "squares ∷ int[] → int[] = { dup * } map;\n" +
+            "total ∷ int[] → int = 0 { + } fold;\n";
+
+    public static int sum(int n) {
+        int sum = 0;
+        for (int i = 0; i < n; i++)
+            sum += i;
+        return sum;
+    }
+
+    public static int[] squares(int[] values) {
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++)
+            result[i] = values[i] * values[i];
+        return result;
+    }
+
+    public static int total(int[] values) {
+        int total = 0;
+        for (int value : values)
+            total += value;
+        return total;
+    }
+
+    public int n = 1000;
+    public int[] values = new int[1000];
+
+    private MethodHandle whileSum, timesSum, javaSum, clarkeSquares, clarkeTotal, javaSquares, javaTotal;
+
+    @Setup
+    public void setUp()
+        throws Throwable {
+        CompiledProgram program = new CompiledProgram(Compiler.compileClasses(SOURCE, new CompilerOptions()),
+                LoopBenchmark.class.getClassLoader());
+        whileSum = program.entryPoint("Loops", "whileSum");
+        timesSum = program.entryPoint("Loops", "timesSum");
+        clarkeSquares = program.entryPoint("Loops", "squares");
+        clarkeTotal = program.entryPoint("Loops", "total");
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        javaSum = lookup.findStatic(LoopBenchmark.class, "sum", timesSum.type());
+        javaSquares = lookup.findStatic(LoopBenchmark.class, "squares", clarkeSquares.type());
+        javaTotal = lookup.findStatic(LoopBenchmark.class, "total", clarkeTotal.type());
+        for (int i = 0; i < values.length; i++)
+            values[i] = i % 100;
+        // while counts from n down to 1, times from 0 up to n - 1
+        if ((int) timesSum.invoke(n) != sum(n) || (int) whileSum.invoke(n) != sum(n) + n
+                || !Arrays.equals((int[]) clarkeSquares.invoke(values), squares(values))
+                || (int) clarkeTotal.invoke(values) != total(values))
+            throw new IllegalStateException("Loops computes wrong results");
+    }
+
+    @Benchmark
+    public int whileLoop() throws Throwable {
+        return (int) whileSum.invoke(n);
+    }
+
+    @Benchmark
+    public int timesLoop() throws Throwable {
+        return (int) timesSum.invoke(n);
+    }
+
+    @Benchmark
+    public int javaLoop() throws Throwable {
+        return (int) javaSum.invoke(n);
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-XX:LoopUnrollLimit=0")
+    public int whileLoopNotUnrolled() throws Throwable {
+        return (int) whileSum.invoke(n);
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-XX:LoopUnrollLimit=0")
+    public int timesLoopNotUnrolled() throws Throwable {
+        return (int) timesSum.invoke(n);
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-XX:LoopUnrollLimit=0")
+    public int javaLoopNotUnrolled() throws Throwable {
+        return (int) javaSum.invoke(n);
+    }
+
+    @Benchmark
+    public int[] mapLoop() throws Throwable {
+        return (int[]) clarkeSquares.invoke(values);
+    }
+
+    @Benchmark
+    public int[] javaMapLoop() throws Throwable {
+        return (int[]) javaSquares.invoke(values);
+    }
+
+    @Benchmark
+    public int foldLoop() throws Throwable {
+        return (int) clarkeTotal.invoke(values);
+    }
+
+    @Benchmark
+    public int javaFoldLoop() throws Throwable {
+        return (int) javaTotal.invoke(values);
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-XX:-UseSuperWord")
+    public int[] mapLoopNotVectorized() throws Throwable {
+        return (int[]) clarkeSquares.invoke(values);
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-XX:-UseSuperWord")
+    public int[] javaMapLoopNotVectorized() throws Throwable {
+        return (int[]) javaSquares.invoke(values);
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-XX:-UseSuperWord")
+    public int foldLoopNotVectorized() throws Throwable {
+        return (int) clarkeTotal.invoke(values);
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-XX:-UseSuperWord")
+    public int javaFoldLoopNotVectorized() throws Throwable {
+        return (int) javaTotal.invoke(values);
+    }
+
+}
@@ -0,0 +1,54 @@
+package technology.unrelenting.clarke;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+// A report that prints lines of ints, longs and doubles, written to System.out as it is
+// and with --buffered-output. System.out goes to /dev/null with autoflush on, like a
+// terminal or a pipe, so every flush is still a write call.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class OutputBenchmark {
+
+    static final String SOURCE =
+            "class Report;\n" +
+            "report ∷ int = { index print \" \" print index 1000L * print \" \" print index 0.5 * println } times flush;\n";
+
+    @Param({"false", "true"})
+    public boolean bufferedOutput;
+
+    @Param({"10000"})
+    public int lines;
+
+    private PrintStream stdout;
+    private MethodHandle report;
+
+    @Setup
+    public void setUp()
+        throws Throwable {
+        CompilerOptions options = new CompilerOptions();
+        options.bufferedOutput = bufferedOutput;
+        report = new CompiledProgram(Compiler.compileClasses(SOURCE, options), OutputBenchmark.class.getClassLoader())
+                .entryPoint("Report", "report");
+        stdout = System.out;
+        System.setOut(new PrintStream(new FileOutputStream("/dev/null"), true));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public void report() throws Throwable {
+        report.invoke(lines);
+    }
+
+}
@@ -0,0 +1,43 @@
+package technology.unrelenting.clarke;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+// The cost of --profile: the length of every Collatz sequence below 1000, which runs a method
+// entry, a while back-edge and an if arm probe per step. Run it with -t 4 (or more) to see
+// how the counters hold up when every thread increments the same ones.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ProfileBenchmark {
+
+    static final String SOURCE =
+            "class Profiled;\n" +
+            "steps ∷ int → int = 0 swap { dup 2 % 0 == { 3 * 1 + } { 2 / } if swap 1 + swap } { dup 1 ≠ } while pop;\n" +
+            "total ∷ int → int = 0 swap { index 1 + steps + } times;\n";
+
+    @Param({"false", "true"})
+    public boolean profile;
+
+    private MethodHandle total;
+
+    @Setup
+    public void setUp()
+        throws Throwable {
+        CompilerOptions options = new CompilerOptions();
+        options.profile = profile;
+        CompiledProgram program = new CompiledProgram(Compiler.compileClasses(SOURCE, options),
+                ProfileBenchmark.class.getClassLoader());
+        total = program.entryPoint("Profiled", "total");
+    }
+
+    @Benchmark
+    public int collatz() throws Throwable {
+        return (int) total.invokeExact(1000);
+    }
+
+}
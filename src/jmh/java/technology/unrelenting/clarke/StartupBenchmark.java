@@ -0,0 +1,78 @@
+package technology.unrelenting.clarke;
+
+import me.qmx.jitescript.JiteClass;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// A program of a thousand classes written as loose class files, the way the compiler writes
+// them by default, and as one jar (--jar). write measures the output, load a fresh class
+// loader reading every class back from disk and defining it. Linking and verification cost
+// the same either way and are left out.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class StartupBenchmark {
+
+    @Param({"directory", "jar"})
+    public String output;
+
+    @Param({"100000"})
+    public int words;
+
+    private Map<String, byte[]> classes;
+    private Path directory;
+    private URL[] classpath;
+
+    @Setup
+    public void setUp()
+        throws CompilerException, IOException {
+        classes = new LinkedHashMap<String, byte[]>();
+        for (JiteClass jiteClass : Compiler.compileClasses(CompileBenchmark.syntheticProgram(words)))
+            classes.put(jiteClass.getClassName(), jiteClass.toBytes());
+        directory = Files.createTempDirectory("clarke-startup");
+        classpath = new URL[] { write().toUri().toURL() };
+    }
+
+    @TearDown
+    public void tearDown()
+        throws IOException {
+        for (Path path : Files.newDirectoryStream(directory))
+            Files.delete(path);
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public Path write()
+        throws IOException {
+        if (output.equals("jar")) {
+            Path jar = directory.resolve("program.jar");
+            Compiler.writeJar(jar, classes);
+            return jar;
+        }
+        Compiler.writeClassFiles(directory, classes);
+        return directory;
+    }
+
+    @Benchmark
+    public int load()
+        throws ClassNotFoundException, IOException {
+        URLClassLoader loader = new URLClassLoader(classpath, StartupBenchmark.class.getClassLoader());
+        int loaded = 0;
+        for (String className : classes.keySet())
+            if (loader.loadClass(className) != null)
+                loaded++;
+        loader.close();
+        return loaded;
+    }
+
+}
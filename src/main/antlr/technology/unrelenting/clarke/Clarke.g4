@@ -20,7 +20,7 @@ typeName : arrayTypeName | qualifiedName ;
 
 arrayTypeName : qualifiedName '[]' ;
 
-expr : controlFlowExpr | loopExpr | PrimitiveOperation | literal | qualifiedName ;
+expr : controlFlowExpr | loopExpr | loopIndex | newArray | primitiveOperation | literal | qualifiedName | instanceCall ;
 
 controlFlowExpr : ifExpr | whenExpr | unlessExpr ;
 
@@ -30,17 +30,65 @@ whenExpr : groupExpr 'when' ;
 
 unlessExpr : groupExpr 'unless' ;
 
-loopExpr : whileExpr ;
+loopExpr : whileExpr | timesExpr | rangeExpr | mapExpr | foldExpr | eachExpr ;
 
 whileExpr : groupExpr groupExpr 'while' ;
 
+timesExpr : groupExpr 'times' ;
+
+rangeExpr : groupExpr 'range' ;
+
+mapExpr : groupExpr 'map' ;
+
+foldExpr : groupExpr 'fold' ;
+
+eachExpr : groupExpr 'each' ;
+
+loopIndex : 'index' ;
+
+newArray : typeName 'new' ;
+
 groupExpr : '{' expr+ '}' ;
 
 
-PrimitiveOperation
-    : '+' | '-' | '*' | '/' | '%'
-    | '¬' | '∧' | '∨' | '==' | '≠' | '<' | '>' | '≤' | '≥'
-    | 'dup' | 'swap' | 'pop' | 'over' | 'println' ;
+primitiveOperation
+    : Plus | Minus | Times | Divide | Remainder
+    | Not | And | Or | Equal | NotEqual | Less | Greater | LessEqual | GreaterEqual
+    | Dup | Swap | Pop | Over | Rot | MinusRot | Nip | Tuck | TwoDup | TwoSwap | Pick
+    | At | Store | Length
+    | Print | Println | Flush ;
+
+Plus : '+' ;
+Minus : '-' ;
+Times : '*' ;
+Divide : '/' ;
+Remainder : '%' ;
+Not : '¬' ;
+And : '∧' ;
+Or : '∨' ;
+Equal : '==' ;
+NotEqual : '≠' ;
+Less : '<' ;
+Greater : '>' ;
+LessEqual : '≤' ;
+GreaterEqual : '≥' ;
+Dup : 'dup' ;
+Swap : 'swap' ;
+Pop : 'pop' ;
+Over : 'over' ;
+Rot : 'rot' ;
+MinusRot : '-rot' ;
+Nip : 'nip' ;
+Tuck : 'tuck' ;
+TwoDup : '2dup' ;
+TwoSwap : '2swap' ;
+Pick : 'pick' ;
+At : '@' ;
+Store : '!' ;
+Length : 'length' ;
+Print : 'print' ;
+Println : 'println' ;
+Flush : 'flush' ;
 
 
 literal : BooleanLiteral | IntLiteral | LongLiteral | FloatLiteral | DoubleLiteral | StringLiteral ;
@@ -64,7 +112,16 @@ fragment NumericChar
 StringLiteral : '"' ( '\\"' | . )*? '"' ;
 
 
-qualifiedName : ID ('.' ID)* ;
+qualifiedName : ID ('.' memberName)* ;
+
+// after a dot, words of the language are names, so Java methods like IntStream.range can be called
+memberName
+    : ID | 'class' | 'if' | 'when' | 'unless' | 'while' | 'times' | 'range' | 'map' | 'fold' | 'each'
+    | 'index' | 'new' | Dup | Swap | Pop | Over | Rot | Nip | Tuck | Pick | Length | Print | Println | Flush ;
+
+instanceCall : InstanceMethodName ;
+
+InstanceMethodName : '#' JavaLetter JavaLetterOrDigit* ;
 
 ID : JavaLetter JavaLetterOrDigit* ; // https://github.com/antlr/grammars-v4/blob/master/java/Java.g4
 
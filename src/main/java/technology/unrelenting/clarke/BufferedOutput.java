@@ -0,0 +1,102 @@
+package technology.unrelenting.clarke;
+
+// print and println with --buffered-output: System.out without a flush on every line
+public final class BufferedOutput {
+
+    private static final int CAPACITY = 1 << 16;
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static final StringBuilder buffer = new StringBuilder(CAPACITY);
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override public void run() {
+                flush();
+            }
+        });
+    }
+
+    private BufferedOutput() {
+    }
+
+    public static synchronized void print(boolean value) {
+        buffer.append(value);
+        written();
+    }
+
+    public static synchronized void print(int value) {
+        buffer.append(value);
+        written();
+    }
+
+    public static synchronized void print(long value) {
+        buffer.append(value);
+        written();
+    }
+
+    public static synchronized void print(float value) {
+        buffer.append(value);
+        written();
+    }
+
+    public static synchronized void print(double value) {
+        buffer.append(value);
+        written();
+    }
+
+    public static synchronized void print(String value) {
+        buffer.append(value);
+        written();
+    }
+
+    public static synchronized void print(Object value) {
+        buffer.append(value);
+        written();
+    }
+
+    public static synchronized void println(boolean value) {
+        buffer.append(value).append(LINE_SEPARATOR);
+        written();
+    }
+
+    public static synchronized void println(int value) {
+        buffer.append(value).append(LINE_SEPARATOR);
+        written();
+    }
+
+    public static synchronized void println(long value) {
+        buffer.append(value).append(LINE_SEPARATOR);
+        written();
+    }
+
+    public static synchronized void println(float value) {
+        buffer.append(value).append(LINE_SEPARATOR);
+        written();
+    }
+
+    public static synchronized void println(double value) {
+        buffer.append(value).append(LINE_SEPARATOR);
+        written();
+    }
+
+    public static synchronized void println(String value) {
+        buffer.append(value).append(LINE_SEPARATOR);
+        written();
+    }
+
+    public static synchronized void println(Object value) {
+        buffer.append(value).append(LINE_SEPARATOR);
+        written();
+    }
+
+    private static void written() {
+        if (buffer.length() >= CAPACITY)
+            flush();
+    }
+
+    public static synchronized void flush() {
+        System.out.append(buffer);
+        System.out.flush();
+        buffer.setLength(0);
+    }
+
+}
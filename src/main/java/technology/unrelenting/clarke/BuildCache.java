@@ -0,0 +1,173 @@
+package technology.unrelenting.clarke;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+
+// On-disk record of a previous build: the hash of every source file, and for every class
+// the hash of its source, its method signatures, the signatures of the classes it called
+// and the bytecode that was emitted for it.
+public class BuildCache {
+
+    private static final String INDEX_FILE = "index.properties";
+
+    private final Path directory;
+    private final Properties index;
+
+    private BuildCache(Path directory, Properties index) {
+        this.directory = directory;
+        this.index = index;
+    }
+
+    public static BuildCache open(Path directory)
+        throws IOException {
+        Properties index = new Properties();
+        Path indexPath = directory.resolve(INDEX_FILE);
+        if (Files.exists(indexPath)) {
+            InputStream in = Files.newInputStream(indexPath);
+            try {
+                index.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        Files.createDirectories(directory.resolve("classes"));
+        return new BuildCache(directory, index);
+    }
+
+    public void save()
+        throws IOException {
+        OutputStream out = Files.newOutputStream(directory.resolve(INDEX_FILE));
+        try {
+            index.store(out, "Clarke build cache");
+        } finally {
+            out.close();
+        }
+    }
+
+    public void useOptions(String fingerprint) {
+        if (!fingerprint.equals(index.getProperty("options"))) {
+            index.clear();
+            index.setProperty("options", fingerprint);
+        }
+    }
+
+    public String fileHash(String file) {
+        return index.getProperty("file." + file);
+    }
+
+    public List<String> fileClasses(String file) {
+        return split(index.getProperty("file." + file + ".classes"));
+    }
+
+    public Set<String> files() {
+        Set<String> files = new HashSet<String>();
+        for (String key : index.stringPropertyNames())
+            if (key.startsWith("file.") && !key.endsWith(".classes"))
+                files.add(key.substring("file.".length()));
+        return files;
+    }
+
+    public void putFile(String file, String hash, Collection<String> classes) {
+        index.setProperty("file." + file, hash);
+        index.setProperty("file." + file + ".classes", StringUtils.join(classes, ' '));
+    }
+
+    public void removeFile(String file) {
+        index.remove("file." + file);
+        index.remove("file." + file + ".classes");
+    }
+
+    public Set<String> classNames() {
+        Set<String> classNames = new HashSet<String>();
+        for (String key : index.stringPropertyNames())
+            if (key.startsWith("class.") && key.endsWith(".source"))
+                classNames.add(key.substring("class.".length(), key.length() - ".source".length()));
+        return classNames;
+    }
+
+    public String sourceHash(String className) {
+        return index.getProperty("class." + className + ".source");
+    }
+
+    public String signatures(String className) {
+        return index.getProperty("class." + className + ".signatures");
+    }
+
+    public Map<String, String> dependencies(String className) {
+        Map<String, String> dependencies = new HashMap<String, String>();
+        for (String entry : split(index.getProperty("class." + className + ".dependencies"))) {
+            int sep = entry.lastIndexOf(':');
+            dependencies.put(entry.substring(0, sep), entry.substring(sep + 1));
+        }
+        return dependencies;
+    }
+
+    public byte[] classBytes(String className)
+        throws IOException {
+        return Files.readAllBytes(classPath(className));
+    }
+
+    public void putClass(String className, String sourceHash, String signatures,
+                         Map<String, String> dependencies, byte[] classBytes)
+        throws IOException {
+        List<String> entries = new ArrayList<String>();
+        for (Map.Entry<String, String> dependency : dependencies.entrySet())
+            entries.add(dependency.getKey() + ":" + dependency.getValue());
+        Collections.sort(entries);
+        index.setProperty("class." + className + ".source", sourceHash);
+        index.setProperty("class." + className + ".signatures", signatures);
+        index.setProperty("class." + className + ".dependencies", StringUtils.join(entries, ' '));
+        Files.write(classPath(className), classBytes);
+    }
+
+    public void removeClass(String className)
+        throws IOException {
+        index.remove("class." + className + ".source");
+        index.remove("class." + className + ".signatures");
+        index.remove("class." + className + ".dependencies");
+        Files.deleteIfExists(classPath(className));
+    }
+
+    private Path classPath(String className) {
+        return directory.resolve("classes").resolve(className + ".class");
+    }
+
+    private static List<String> split(String value) {
+        if (value == null || value.isEmpty())
+            return Collections.emptyList();
+        return Arrays.asList(value.split(" "));
+    }
+
+    // Signatures are stored as space separated name:descriptor pairs, sorted by name,
+    // so that equal signature tables always produce equal strings.
+    public static String encodeSignatures(Map<String, Class[]> signatures) {
+        List<String> entries = new ArrayList<String>();
+        for (Map.Entry<String, Class[]> entry : signatures.entrySet())
+            entries.add(entry.getKey() + ":" + sig(entry.getValue()));
+        Collections.sort(entries);
+        return StringUtils.join(entries, ' ');
+    }
+
+    public static Map<String, Class[]> decodeSignatures(String encoded)
+        throws CompilerException {
+        Map<String, Class[]> signatures = new HashMap<String, Class[]>();
+        try {
+            for (String entry : split(encoded)) {
+                int sep = entry.indexOf(':');
+                signatures.put(entry.substring(0, sep), SymbolIndex.shared().signature(entry.substring(sep + 1)));
+            }
+        } catch (ClassNotFoundException ex) {
+            throw new CompilerException(ex);
+        }
+        return signatures;
+    }
+
+}
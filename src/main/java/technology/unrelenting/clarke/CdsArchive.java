@@ -0,0 +1,89 @@
+package technology.unrelenting.clarke;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+// Class data sharing for compiled programs (--cds). The program is run once from its jar,
+// and the JVM writes every class it loaded into an archive when it exits (-XX:ArchiveClassesAtExit,
+// Java 13 and later). The launcher script written next to the jar maps that archive at
+// startup, so those classes are not read, parsed and verified again. A JVM only uses the
+// archive with the same JVM build and classpath it was written with, so the launcher names
+// both with absolute paths; with anything else the archive is ignored and the program still runs.
+public class CdsArchive {
+
+    private CdsArchive() {
+    }
+
+    // writes jar's archive and launcher next to it (program.jar: program.jsa and program) and returns the launcher
+    public static Path create(Path jar, String mainClass)
+        throws CompilerException, IOException {
+        if (javaVersion() < 13)
+            throw new CompilerException("Option --cds needs the compiler to run on Java 13 or later.");
+        Path jarPath = jar.toAbsolutePath().normalize();
+        String name = jarPath.getFileName().toString().replaceFirst("\\.jar$", "");
+        Path archive = jarPath.resolveSibling(name + ".jsa");
+        Path launcher = jarPath.resolveSibling(name);
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String classpath = classpath(jarPath);
+
+        Files.deleteIfExists(archive);
+        String output = run(java, "-XX:ArchiveClassesAtExit=" + archive, "-cp", classpath, mainClass);
+        // a training run that fails still archives what it loaded, but nothing at all is a problem
+        if (!Files.exists(archive))
+            throw new CompilerException("The training run of " + mainClass + " did not write " + archive + ":\n" + output);
+
+        String script = "#!/bin/sh\n"
+                + "exec '" + java + "' -XX:SharedArchiveFile='" + archive + "' -cp '" + classpath + "' " + mainClass + " \"$@\"\n";
+        Files.write(launcher, script.getBytes(Charset.forName("UTF-8")));
+        launcher.toFile().setExecutable(true);
+        return launcher;
+    }
+
+    // The Clarke classes are on the classpath for programs that call into Java or buffer their
+    // output. The JVM can only archive classes from jars, so they are left out when the
+    // compiler runs from a directory, like in its own build.
+    private static String classpath(Path jar) {
+        try {
+            Path runtime = Paths.get(ClarkeBootstrap.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (Files.isRegularFile(runtime))
+                return jar + File.pathSeparator + runtime.toAbsolutePath();
+        } catch (URISyntaxException ex) {
+            // not on the local file system
+        }
+        return jar.toString();
+    }
+
+    private static String run(String... command)
+        throws CompilerException, IOException {
+        Process process = new ProcessBuilder(Arrays.asList(command)).redirectErrorStream(true).start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream in = process.getInputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) >= 0; )
+                output.write(buffer, 0, read);
+            process.waitFor();
+        } catch (InterruptedException ex) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new CompilerException("Interrupted during the training run.", ex);
+        } finally {
+            in.close();
+        }
+        return output.toString();
+    }
+
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+
+}
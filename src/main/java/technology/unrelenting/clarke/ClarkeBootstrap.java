@@ -0,0 +1,58 @@
+package technology.unrelenting.clarke;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+// Links calls into Java once, to the overload that fits the types at the call site
+public final class ClarkeBootstrap {
+
+    private ClarkeBootstrap() {
+    }
+
+    // a call of the static method className.name
+    public static CallSite linkStatic(MethodHandles.Lookup caller, String name, MethodType type, String className)
+        throws ReflectiveOperationException {
+        Class owner = Class.forName(className, false, caller.lookupClass().getClassLoader());
+        Method method = resolve(owner, name, true, type.parameterArray(), type);
+        MethodHandle target = caller.findStatic(owner, name, MethodType.methodType(method.getReturnType(), method.getParameterTypes()));
+        return new ConstantCallSite(target.asType(type));
+    }
+
+    // a call of the instance method name on the first argument, dispatched on its class at run time
+    public static CallSite linkVirtual(MethodHandles.Lookup caller, String name, MethodType type)
+        throws ReflectiveOperationException {
+        Class receiver = type.parameterType(0);
+        Method method = resolve(receiver, name, false, type.dropParameterTypes(0, 1).parameterArray(), type);
+        MethodHandle target = caller.findVirtual(receiver, name, MethodType.methodType(method.getReturnType(), method.getParameterTypes()));
+        return new ConstantCallSite(target.asType(type));
+    }
+
+    private static Method resolve(Class owner, String name, boolean isStatic, Class[] arguments, MethodType type)
+        throws NoSuchMethodException {
+        List<Method> methods = new ArrayList<Method>();
+        List<Class[]> signatures = new ArrayList<Class[]>();
+        for (Method method : owner.getMethods()) {
+            if (method.getName().equals(name) && Modifier.isStatic(method.getModifiers()) == isStatic
+                    && !method.isBridge() && method.getParameterTypes().length == arguments.length) {
+                Class[] signature = new Class[arguments.length + 1];
+                signature[0] = method.getReturnType();
+                System.arraycopy(method.getParameterTypes(), 0, signature, 1, arguments.length);
+                methods.add(method);
+                signatures.add(signature);
+            }
+        }
+        int chosen = OverloadResolver.resolve(signatures, arguments);
+        if (chosen < 0)
+            throw new NoSuchMethodException((chosen == OverloadResolver.AMBIGUOUS ? "Ambiguous call " : "No method ")
+                    + owner.getName() + "." + name + " for " + type);
+        return methods.get(chosen);
+    }
+
+}
@@ -0,0 +1,53 @@
+package technology.unrelenting.clarke;
+
+import me.qmx.jitescript.CodeBlock;
+import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.internal.org.objectweb.asm.ClassWriter;
+import me.qmx.jitescript.internal.org.objectweb.asm.Opcodes;
+import me.qmx.jitescript.internal.org.objectweb.asm.tree.ClassNode;
+import me.qmx.jitescript.internal.org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A JiteClass written for a chosen Java version. JiteClass.toBytes() always writes Java 6
+// class files and has ASM recompute every stack map frame; the code generator already puts
+// the frames into the methods (see StackMapFrames), so ASM only has to count max stack and locals.
+// toBytes(JDKVersion) still goes through JiteClass and consumes the method bodies.
+public class ClarkeClass extends JiteClass {
+
+    private final int version;
+    private final List<MethodNode> methodNodes = new ArrayList<MethodNode>();
+
+    public ClarkeClass(String className, int target) {
+        super(className);
+        version = classFileVersion(target);
+    }
+
+    // Java 6 is class file version 50, and every Java release after it is one more
+    public static int classFileVersion(int target) {
+        return Opcodes.V1_6 + target - 6;
+    }
+
+    @Override public void defineMethod(String methodName, int modifiers, String signature, CodeBlock methodBody) {
+        super.defineMethod(methodName, modifiers, signature, methodBody);
+        MethodNode method = new MethodNode(modifiers, methodName, signature, null, null);
+        method.instructions = methodBody.getInstructionList();
+        methodNodes.add(method);
+    }
+
+    // the ClassNode in the ASM bundled with jitescript keeps its methods in a raw List
+    @SuppressWarnings("unchecked")
+    @Override public byte[] toBytes() {
+        ClassNode node = new ClassNode();
+        node.version = version;
+        node.access = getAccess() | Opcodes.ACC_SUPER;
+        node.name = getClassName();
+        node.superName = "java/lang/Object";
+        node.methods.addAll(methodNodes);
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        node.accept(writer);
+        return writer.toByteArray();
+    }
+
+}
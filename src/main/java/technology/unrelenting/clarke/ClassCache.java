@@ -0,0 +1,102 @@
+package technology.unrelenting.clarke;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ClassCache {
+
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private final long maxBytes;
+    private final ClassLoader parent;
+    private final LinkedHashMap<String, CompiledProgram> programs;
+    private long currentBytes;
+
+    public ClassCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public ClassCache(long maxBytes) {
+        this(maxBytes, ClassCache.class.getClassLoader());
+    }
+
+    public ClassCache(long maxBytes, ClassLoader parent) {
+        this.maxBytes = maxBytes;
+        this.parent = parent;
+        // access order, so iteration starts at the least recently used program
+        this.programs = new LinkedHashMap<String, CompiledProgram>(16, 0.75f, true);
+    }
+
+    public CompiledProgram load(String source)
+        throws CompilerException {
+        String key = hash(source);
+        synchronized (this) {
+            CompiledProgram program = programs.get(key);
+            if (program != null)
+                return program;
+        }
+        // compile outside the lock; if two threads race on the same source the first one wins
+        CompiledProgram compiled = new CompiledProgram(Compiler.compileClasses(source), parent);
+        synchronized (this) {
+            CompiledProgram existing = programs.get(key);
+            if (existing != null)
+                return existing;
+            programs.put(key, compiled);
+            currentBytes += compiled.getSize();
+            evict(key);
+            return compiled;
+        }
+    }
+
+    public synchronized boolean contains(String source) {
+        return programs.containsKey(hash(source));
+    }
+
+    public synchronized int size() {
+        return programs.size();
+    }
+
+    public synchronized long byteSize() {
+        return currentBytes;
+    }
+
+    public synchronized void clear() {
+        programs.clear();
+        currentBytes = 0;
+    }
+
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, CompiledProgram>> it = programs.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, CompiledProgram> entry = it.next();
+            if (entry.getKey().equals(keep))
+                continue;
+            currentBytes -= entry.getValue().getSize();
+            it.remove();
+        }
+    }
+
+    static String hash(String source) {
+        return hash(ByteBuffer.wrap(source.getBytes(Charset.forName("UTF-8"))));
+    }
+
+    static String hash(ByteBuffer bytes) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(bytes);
+            byte[] digest = sha.digest();
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
@@ -1,35 +1,126 @@
 package technology.unrelenting.clarke;
 
+import me.qmx.jitescript.internal.org.objectweb.asm.Handle;
+import me.qmx.jitescript.internal.org.objectweb.asm.Type;
 import me.qmx.jitescript.internal.org.objectweb.asm.tree.LabelNode;
 import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.antlr.v4.runtime.tree.TerminalNode;
+import org.apache.commons.lang3.ClassUtils;
+import org.antlr.v4.runtime.ParserRuleContext;
 import me.qmx.jitescript.CodeBlock;
 import me.qmx.jitescript.internal.org.objectweb.asm.Opcodes;
 import me.qmx.jitescript.JiteClass;
 
-import java.lang.reflect.Method;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.*;
 
+import static me.qmx.jitescript.util.CodegenUtils.p;
 import static me.qmx.jitescript.util.CodegenUtils.sig;
 
 public class ClassGenerator extends ClarkeBaseListener {
 
+    static final Handle LINK_STATIC = new Handle(Opcodes.H_INVOKESTATIC, p(ClarkeBootstrap.class), "linkStatic",
+            sig(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class, String.class));
+    static final Handle LINK_VIRTUAL = new Handle(Opcodes.H_INVOKESTATIC, p(ClarkeBootstrap.class), "linkVirtual",
+            sig(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class));
+    static final Handle PROBE = new Handle(Opcodes.H_INVOKESTATIC, p(Profile.class), "probe",
+            sig(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class, String.class));
+    // Stands for a type variable in the signature table. Generic methods are never generated as
+    // they are written, only specialized for the types they are called with, see compileSpecializedCall.
+    static final Class TYPE_VARIABLE = java.lang.reflect.TypeVariable.class;
+    // how many specializations deep a generic method can call itself with new types
+    private static final int MAX_SPECIALIZATION_DEPTH = 16;
+
+    private static class Specialization {
+        final String className;
+        final String methodName;
+        final String name;
+        final Class[] signature;
+        final int depth;
+
+        Specialization(String className, String methodName, String name, Class[] signature, int depth) {
+            this.className = className;
+            this.methodName = methodName;
+            this.name = name;
+            this.signature = signature;
+            this.depth = depth;
+        }
+    }
+
     JiteClass jiteClass;
-    Stack<Class> classStack;
+    TypeStack classStack;
     Map<Integer, Class> varTypeMap;
+    List<Object> pendingConstants;
+    // a comparison whose operands are on the stack, see compileComparison; 0 when there is none
+    int pendingComparison;
+    Class comparedType;
+    String lexicalClassName;
+    int scratchSlot;
+    List<Integer> loopIndexSlots;
+    String methodName;
+    // the method whose code is being compiled, which is the callee while a call is inlined
+    String profiledMethod;
+    Class[] methodSignature;
+    LabelNode methodStart;
     String classNameSlashed;
+    // the specializations the class being generated calls, by name, and those still to be compiled
+    Set<String> specializations;
+    Deque<Specialization> pendingSpecializations;
+    int specializationDepth;
     final Map<String, Map<String, Class[]>> methodSigCache;
     final List<JiteClass> jiteClasses;
     final Map<String, ClarkeParser.ClassDefinitionContext> classesToCompile;
+    final Map<String, Set<String>> classDependencies;
+    final Map<String, Set<String>> bodyDependencies;
+    final Map<String, Boolean> pureMethods;
+    final Map<String, Boolean> recursiveMethods;
+    final Map<String, Integer> inlineSizes;
+    final Map<String, Map<String, ClarkeParser.MethodDefinitionContext>> methodDefinitions;
+    final CompilerOptions options;
+    final SymbolIndex symbols;
+    // set by the REPL: methods return everything left on the stack, see compileStackArray
+    boolean returnsStack;
+    Class[] returnedStack;
 
     public ClassGenerator() {
+        this(new CompilerOptions());
+    }
+
+    public ClassGenerator(CompilerOptions options) {
+        this(options, new HashMap<String, Map<String, Class[]>>(), new HashMap<String, ClarkeParser.ClassDefinitionContext>());
+    }
+
+    // Per-method state lives in the generator, so every thread generating classes needs its own
+    // instance; they can share the signature table and parse trees as long as nobody modifies them.
+    ClassGenerator(CompilerOptions options, Map<String, Map<String, Class[]>> methodSigCache,
+                   Map<String, ClarkeParser.ClassDefinitionContext> classesToCompile) {
+        this.options = options;
+        symbols = SymbolIndex.shared();
         jiteClasses = new LinkedList<JiteClass>();
-        classesToCompile = new HashMap<String, ClarkeParser.ClassDefinitionContext>();
-        methodSigCache = new HashMap<String, Map<String, Class[]>>();
+        this.methodSigCache = methodSigCache;
+        this.classesToCompile = classesToCompile;
+        classDependencies = new HashMap<String, Set<String>>();
+        bodyDependencies = new HashMap<String, Set<String>>();
+        pureMethods = new HashMap<String, Boolean>();
+        recursiveMethods = new HashMap<String, Boolean>();
+        inlineSizes = new HashMap<String, Integer>();
+        methodDefinitions = new HashMap<String, Map<String, ClarkeParser.MethodDefinitionContext>>();
     }
 
     public List<JiteClass> generate()
+        throws CompilerException {
+        long start = System.nanoTime();
+        buildSignatures();
+        long now = CompilerStats.record(options, CompilerStats.SIGNATURES, start, classesToCompile.size());
+        CompilerEvents.signaturesBuilt("program", classesToCompile.size(), now - start);
+        for (String className : classesToCompile.keySet())
+            jiteClasses.add(generateClass(className));
+        CompilerStats.record(options, CompilerStats.GENERATE, now, classesToCompile.size());
+        return jiteClasses;
+    }
+
+    void buildSignatures()
         throws CompilerException {
         for (String className : classesToCompile.keySet()) {
             Map<String, Class[]> methodSignatures = new HashMap<String, Class[]>();
@@ -37,26 +128,42 @@ public class ClassGenerator extends ClarkeBaseListener {
                 methodSignatures.put(methodCtx.qualifiedName().getText(), buildSignature(methodCtx));
             methodSigCache.put(className, methodSignatures);
         }
-        for (String className : classesToCompile.keySet()) {
-            jiteClass = new JiteClass(className);
-            classNameSlashed = className.replace('.', '/');
-            for (ClarkeParser.MethodDefinitionContext methodCtx : classesToCompile.get(className).methodDefinition())
-                compileMethod(methodCtx, methodSigCache.get(className).get(methodCtx.qualifiedName().getText()));
-//        try {
-//            Files.write(Paths.get("TestClass.class"), jiteClass.toBytes());
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        }
-            jiteClasses.add(jiteClass);
+    }
+
+    JiteClass generateClass(String className)
+        throws CompilerException {
+        jiteClass = new ClarkeClass(className, options.target);
+        lexicalClassName = className;
+        classNameSlashed = className.replace('.', '/');
+        classDependencies.put(className, new HashSet<String>());
+        bodyDependencies.put(className, new HashSet<String>());
+        specializations = new HashSet<String>();
+        pendingSpecializations = new ArrayDeque<Specialization>();
+        for (ClarkeParser.MethodDefinitionContext methodCtx : classesToCompile.get(className).methodDefinition()) {
+            String name = methodCtx.qualifiedName().getText();
+            Class[] signature = methodSigCache.get(className).get(name);
+            if (!isGeneric(signature))
+                compileMethod(methodCtx, name, signature);
         }
-        return jiteClasses;
+        while (!pendingSpecializations.isEmpty()) {
+            Specialization specialization = pendingSpecializations.poll();
+            lexicalClassName = specialization.className;
+            specializationDepth = specialization.depth;
+            compileMethod(findMethod(specialization.className, specialization.methodName), specialization.name,
+                    specialization.signature);
+        }
+        lexicalClassName = className;
+        specializationDepth = 0;
+        return jiteClass;
     }
 
     private Class resolveType(ClarkeParser.TypeNameContext typeID)
         throws CompilerException {
         try {
+            if (isTypeVariable(typeID))
+                return typeID.arrayTypeName() != null ? PrimitiveOperations.arrayOf(TYPE_VARIABLE) : TYPE_VARIABLE;
             if (typeID.arrayTypeName() != null)
-                return Class.forName("[L" + resolveType(typeID.arrayTypeName().qualifiedName().getText()).getName() + ";");
+                return PrimitiveOperations.arrayOf(resolveType(typeID.arrayTypeName().qualifiedName().getText()));
             return resolveType(typeID.qualifiedName().getText());
         } catch (ClassNotFoundException ex) {
             throw new CompilerException(ex);
@@ -75,135 +182,923 @@ public class ClassGenerator extends ClarkeBaseListener {
             return float.class;
         if (typeName.equals("double"))
             return double.class;
-        return Class.forName(typeName);
-    }
-
-    private void compilePushLiteral(CodeBlock block, ClarkeParser.LiteralContext literal) {
-        if (literal.BooleanLiteral() != null) {
-            block.pushBoolean(literal.BooleanLiteral().getSymbol().getText().equals("true"));
-            classStack.push(boolean.class);
-        } else if (literal.IntLiteral() != null) {
-            block.pushInt(Integer.parseInt(literal.IntLiteral().getSymbol().getText()
-                    .replace("_", "")));
-            classStack.push(int.class);
-        } else if (literal.LongLiteral() != null) {
-            block.ldc(Long.parseLong(literal.LongLiteral().getSymbol().getText()
-                    .replace("_", "").replace("l", "").replace("L", "")));
-            classStack.push(long.class);
-        } else if (literal.FloatLiteral() != null) {
-            block.ldc(Float.parseFloat(literal.FloatLiteral().getSymbol().getText()
-                    .replace("_", "").replace("f", "").replace("F", "")));
-            classStack.push(float.class);
-        } else if (literal.DoubleLiteral() != null) {
-            block.ldc(Double.parseDouble(literal.DoubleLiteral().getSymbol().getText()
-                    .replace("_", "").replace("d", "").replace("D", "")));
-            classStack.push(double.class);
-        } else if (literal.StringLiteral() != null) {
-            String s = literal.StringLiteral().getText();
-            block.ldc(s.substring(1, s.length() - 1));
-            classStack.push(String.class);
-        }
-    }
-
-    private void compileControlFlow(CodeBlock block, ClarkeParser.ControlFlowExprContext ctx)
+        return symbols.resolveClass(typeName);
+    }
+
+    // Type variables are written as a single lower case letter, like a in square ∷ a → a.
+    private static String typeVariable(ClarkeParser.TypeNameContext typeID) {
+        String name = typeID.arrayTypeName() != null ? typeID.arrayTypeName().qualifiedName().getText()
+                : typeID.qualifiedName().getText();
+        return name.length() == 1 && Character.isLowerCase(name.charAt(0)) ? name : null;
+    }
+
+    private static boolean isTypeVariable(ClarkeParser.TypeNameContext typeID) {
+        return typeVariable(typeID) != null;
+    }
+
+    static boolean isGeneric(Class[] signature) {
+        for (Class type : signature)
+            if (type == TYPE_VARIABLE || type.getComponentType() == TYPE_VARIABLE)
+                return true;
+        return false;
+    }
+
+    // The signature of the generic method specialized for these argument types, or null if they
+    // don't fit: each type variable stands for the type of the first argument it is written at,
+    // and a[] for an array of it.
+    Class[] specialize(String className, String methodName, Class[] arguments)
         throws CompilerException {
-        LabelNode stopLabel = new LabelNode();
-        if (classStack.pop() != boolean.class)
+        ClarkeParser.MethodDefinitionContext methodCtx = findMethod(className, methodName);
+        if (methodCtx == null)
+            throw new CompilerException("The source of the generic method " + className + "." + methodName
+                    + " is needed to specialize it.");
+        Class[] generic = methodSigCache.get(className).get(methodName);
+        List<ClarkeParser.TypeNameContext> typeNames = methodCtx.typeSignature().argTypes().typeName();
+        Map<String, Class> bindings = new HashMap<String, Class>();
+        Class[] signature = new Class[generic.length];
+        for (int i = 1; i < generic.length; i++) {
+            ClarkeParser.TypeNameContext typeName = typeNames.get(i - 1);
+            Class argument = arguments[i - 1];
+            if (!isTypeVariable(typeName)) {
+                if (generic[i] != argument)
+                    return null;
+            } else if (typeName.arrayTypeName() != null) {
+                if (!argument.isArray() || !bind(bindings, typeVariable(typeName), argument.getComponentType()))
+                    return null;
+            } else if (!bind(bindings, typeVariable(typeName), argument)) {
+                return null;
+            }
+            signature[i] = argument;
+        }
+        signature[0] = generic[0];
+        ClarkeParser.ReturnTypeContext returnType = methodCtx.typeSignature().returnType();
+        if (returnType != null && isTypeVariable(returnType.typeName())) {
+            signature[0] = bindings.get(typeVariable(returnType.typeName()));
+            if (generic[0].isArray())
+                signature[0] = PrimitiveOperations.arrayOf(signature[0]);
+        }
+        return signature;
+    }
+
+    private static boolean bind(Map<String, Class> bindings, String variable, Class type) {
+        Class bound = bindings.get(variable);
+        if (bound == null)
+            bindings.put(variable, type);
+        return bound == null || bound == type;
+    }
+
+    static Object literalValue(ClarkeParser.LiteralContext literal) {
+        if (literal.BooleanLiteral() != null)
+            return literal.BooleanLiteral().getSymbol().getText().equals("true");
+        if (literal.IntLiteral() != null)
+            return Integer.parseInt(literal.IntLiteral().getSymbol().getText()
+                    .replace("_", ""));
+        if (literal.LongLiteral() != null)
+            return Long.parseLong(literal.LongLiteral().getSymbol().getText()
+                    .replace("_", "").replace("l", "").replace("L", ""));
+        if (literal.FloatLiteral() != null)
+            return Float.parseFloat(literal.FloatLiteral().getSymbol().getText()
+                    .replace("_", "").replace("f", "").replace("F", ""));
+        if (literal.DoubleLiteral() != null)
+            return Double.parseDouble(literal.DoubleLiteral().getSymbol().getText()
+                    .replace("_", "").replace("d", "").replace("D", ""));
+        String s = literal.StringLiteral().getText();
+        return s.substring(1, s.length() - 1);
+    }
+
+    // Literals are not emitted right away: they stay on top of the stack as pending constants,
+    // so operations on them can be evaluated at compile time. Anything that emits code
+    // has to materialize them first.
+    private void pushConstant(Object value) {
+        pendingConstants.add(value);
+        classStack.push(ConstantFolder.typeOf(value));
+    }
+
+    private Object popConstant() {
+        classStack.pop();
+        return pendingConstants.remove(pendingConstants.size() - 1);
+    }
+
+    private Object peekConstant(int depth) {
+        return pendingConstants.get(pendingConstants.size() - 1 - depth);
+    }
+
+    private void materializeConstants(CodeBlock block) {
+        materializeComparison(block);
+        for (Object value : pendingConstants)
+            ConstantFolder.push(block, value);
+        pendingConstants.clear();
+    }
+
+    // From -O1 on, a comparison only converts its operands at first and waits for what comes next:
+    // if it is a conditional, or the end of the condition of a while loop, the comparison is compiled
+    // into the jump, like if_icmpge or lcmp ifge, instead of making a boolean that ifeq tests again.
+    // Anything else materializes the boolean first.
+    private void compileComparison(CodeBlock block, int op) {
+        comparedType = PrimitiveOperations.compileComparisonOperands(block, classStack);
+        pendingComparison = op;
+    }
+
+    private void materializeComparison(CodeBlock block) {
+        if (pendingComparison != 0) {
+            PrimitiveOperations.compileComparisonValue(block, classStack, pendingComparison, comparedType);
+            pendingComparison = 0;
+        }
+    }
+
+    // jumps to target when the boolean on top of the stack, already popped from the type stack, is jumpIf
+    private void compileBranch(CodeBlock block, boolean jumpIf, LabelNode target) {
+        if (pendingComparison != 0) {
+            PrimitiveOperations.compileComparisonJump(block, pendingComparison, comparedType, jumpIf, target);
+            pendingComparison = 0;
+        } else {
+            materializeConstants(block);
+            if (jumpIf)
+                block.ifne(target);
+            else
+                block.ifeq(target);
+        }
+    }
+
+    private void compilePushLiteral(ClarkeParser.LiteralContext literal) {
+        pushConstant(literalValue(literal));
+    }
+
+    // pick takes its index from a literal, the values it picks from can be anything
+    private StackShuffler.Shuffle pickShuffle()
+        throws CompilerException {
+        if (pendingConstants.isEmpty() || !(peekConstant(0) instanceof Integer) || (Integer) peekConstant(0) < 0)
+            throw new CompilerException("pick needs a constant index.");
+        StackShuffler.Shuffle shuffle = StackShuffler.pick((Integer) popConstant());
+        if (classStack.size() < shuffle.window)
+            throw new CompilerException("Not enough values on the stack for pick.");
+        return shuffle;
+    }
+
+    private boolean foldShuffle(StackShuffler.Shuffle shuffle) {
+        if (pendingConstants.size() < shuffle.window)
+            return false;
+        List<Object> values = shuffle.apply(pendingConstants);
+        for (int i = 0; i < shuffle.window; i++)
+            popConstant();
+        for (Object value : values)
+            pushConstant(value);
+        return true;
+    }
+
+    private void compileShuffle(CodeBlock block, StackShuffler.Shuffle shuffle) {
+        if (options.optimizationLevel < 1 || !foldShuffle(shuffle)) {
+            materializeConstants(block);
+            PrimitiveOperations.compileShuffle(block, classStack, varTypeMap, scratchSlot, shuffle);
+        }
+    }
+
+    private boolean foldPrimitiveOperation(int op) {
+        int pending = pendingConstants.size();
+        if (StackShuffler.forOperation(op) != null) {
+            return foldShuffle(StackShuffler.forOperation(op));
+        } else if (op == ClarkeLexer.Not && pending >= 1) {
+            Object result = ConstantFolder.not(peekConstant(0));
+            if (result == null)
+                return false;
+            popConstant();
+            pushConstant(result);
+        } else if (pending >= 2) {
+            Object result = ConstantFolder.binary(op, peekConstant(1), peekConstant(0));
+            if (result == null)
+                return false;
+            popConstant();
+            popConstant();
+            pushConstant(result);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private boolean evaluatePureCall(ClarkeParser.QualifiedNameContext ctx) {
+        String methodName = ConstantEvaluator.calleeMethodName(ctx);
+        String className = ConstantEvaluator.calleeClassName(ctx, lexicalClassName);
+        Map<String, Class[]> methodsOfClass = methodSigCache.get(className);
+        if (methodsOfClass == null || !methodsOfClass.containsKey(methodName))
+            return false;
+        int arity = methodsOfClass.get(methodName).length - 1;
+        if (pendingConstants.size() < arity)
+            return false;
+        ConstantEvaluator evaluator = new ConstantEvaluator(this, pureMethods, options.evaluationBudget);
+        if (!evaluator.isPure(className, methodName))
+            return false;
+        List<Object> args = new ArrayList<Object>(pendingConstants.subList(pendingConstants.size() - arity, pendingConstants.size()));
+        Object result = evaluator.evaluate(className, methodName, args);
+        if (result == null)
+            return false;
+        for (int i = 0; i < arity; i++)
+            popConstant();
+        if (result != ConstantEvaluator.VOID)
+            pushConstant(result);
+        for (String touched : evaluator.getTouchedClasses())
+            if (!touched.equals(jiteClass.getClassName()))
+                bodyDependencies.get(jiteClass.getClassName()).add(touched);
+        return true;
+    }
+
+    ClarkeParser.MethodDefinitionContext findMethod(String className, String methodName) {
+        Map<String, ClarkeParser.MethodDefinitionContext> methods = methodDefinitions.get(className);
+        if (methods == null) {
+            ClarkeParser.ClassDefinitionContext classCtx = classesToCompile.get(className);
+            if (classCtx == null)
+                return null;
+            methods = new HashMap<String, ClarkeParser.MethodDefinitionContext>();
+            for (ClarkeParser.MethodDefinitionContext methodCtx : classCtx.methodDefinition())
+                methods.put(methodCtx.qualifiedName().getText(), methodCtx);
+            methodDefinitions.put(className, methods);
+        }
+        return methods.get(methodName);
+    }
+
+    static List<ClarkeParser.GroupExprContext> groups(ClarkeParser.ExprContext expr) {
+        if (expr.controlFlowExpr() != null) {
+            ClarkeParser.ControlFlowExprContext ctx = expr.controlFlowExpr();
+            if (ctx.ifExpr() != null)
+                return ctx.ifExpr().groupExpr();
+            if (ctx.whenExpr() != null)
+                return Collections.singletonList(ctx.whenExpr().groupExpr());
+            return Collections.singletonList(ctx.unlessExpr().groupExpr());
+        }
+        if (expr.loopExpr() != null) {
+            ClarkeParser.LoopExprContext ctx = expr.loopExpr();
+            if (ctx.whileExpr() != null)
+                return ctx.whileExpr().groupExpr();
+            if (ctx.timesExpr() != null)
+                return Collections.singletonList(ctx.timesExpr().groupExpr());
+            if (ctx.rangeExpr() != null)
+                return Collections.singletonList(ctx.rangeExpr().groupExpr());
+            if (ctx.mapExpr() != null)
+                return Collections.singletonList(ctx.mapExpr().groupExpr());
+            if (ctx.foldExpr() != null)
+                return Collections.singletonList(ctx.foldExpr().groupExpr());
+            return Collections.singletonList(ctx.eachExpr().groupExpr());
+        }
+        return Collections.emptyList();
+    }
+
+    // The number of words a call to the method expands to once everything it calls is inlined
+    // as well, or Integer.MAX_VALUE if it can't be inlined.
+    private int inlineSize(String className, String methodName) {
+        String key = className + "." + methodName;
+        Integer known = inlineSizes.get(key);
+        if (known == null) {
+            ClarkeParser.MethodDefinitionContext methodCtx = findMethod(className, methodName);
+            if (methodCtx == null || isRecursive(className, methodName))
+                known = Integer.MAX_VALUE;
+            else
+                known = expandedSize(methodCtx.expr(), className);
+            if (known > options.inlineLimit)
+                known = Integer.MAX_VALUE;
+            inlineSizes.put(key, known);
+        }
+        return known;
+    }
+
+    private int expandedSize(List<ClarkeParser.ExprContext> exprs, String className) {
+        int size = 0;
+        for (ClarkeParser.ExprContext expr : exprs) {
+            size++;
+            for (ClarkeParser.GroupExprContext group : groups(expr))
+                size += expandedSize(group.expr(), className);
+            if (expr.qualifiedName() != null) {
+                ClarkeParser.QualifiedNameContext name = expr.qualifiedName();
+                int calleeSize = inlineSize(ConstantEvaluator.calleeClassName(name, className), ConstantEvaluator.calleeMethodName(name));
+                if (calleeSize != Integer.MAX_VALUE)
+                    size += calleeSize - 1;
+            }
+            if (size > options.inlineLimit)
+                return options.inlineLimit + 1; // too big already, no need to look further
+        }
+        return size;
+    }
+
+    private boolean isRecursive(String className, String methodName) {
+        String key = className + "." + methodName;
+        if (!recursiveMethods.containsKey(key))
+            findRecursion(key, new HashMap<String, Integer>(), new ArrayDeque<String>());
+        return recursiveMethods.get(key);
+    }
+
+    // Tarjan's strongly connected components over the call graph: a method is recursive
+    // if it shares a component with another method or calls itself directly.
+    private int findRecursion(String method, Map<String, Integer> index, Deque<String> stack) {
+        int methodIndex = index.size();
+        index.put(method, methodIndex);
+        int low = methodIndex;
+        stack.push(method);
+        boolean callsItself = false;
+        for (String callee : callees(method)) {
+            if (callee.equals(method))
+                callsItself = true;
+            if (recursiveMethods.containsKey(callee))
+                continue;
+            if (!index.containsKey(callee))
+                low = Math.min(low, findRecursion(callee, index, stack));
+            else if (stack.contains(callee))
+                low = Math.min(low, index.get(callee));
+        }
+        if (low == methodIndex) {
+            List<String> component = new ArrayList<String>();
+            String member;
+            do {
+                member = stack.pop();
+                component.add(member);
+            } while (!member.equals(method));
+            for (String recursive : component)
+                recursiveMethods.put(recursive, component.size() > 1 || callsItself);
+        }
+        return low;
+    }
+
+    private List<String> callees(String method) {
+        int sep = method.lastIndexOf('.');
+        String className = method.substring(0, sep);
+        List<String> callees = new ArrayList<String>();
+        ClarkeParser.MethodDefinitionContext methodCtx = findMethod(className, method.substring(sep + 1));
+        if (methodCtx != null)
+            collectCallees(methodCtx.expr(), className, callees);
+        return callees;
+    }
+
+    private void collectCallees(List<ClarkeParser.ExprContext> exprs, String className, List<String> callees) {
+        for (ClarkeParser.ExprContext expr : exprs) {
+            for (ClarkeParser.GroupExprContext group : groups(expr))
+                collectCallees(group.expr(), className, callees);
+            if (expr.qualifiedName() != null) {
+                ClarkeParser.QualifiedNameContext name = expr.qualifiedName();
+                String calleeClassName = ConstantEvaluator.calleeClassName(name, className);
+                if (findMethod(calleeClassName, ConstantEvaluator.calleeMethodName(name)) != null)
+                    callees.add(calleeClassName + "." + ConstantEvaluator.calleeMethodName(name));
+            }
+        }
+    }
+
+    // The classes whose parse trees generating className can look at: its own, and those of every
+    // class it calls into, directly or through the methods it calls. The classes each class calls
+    // into directly are kept in calleeClasses, so it can be shared by the lookups for all classes.
+    Set<String> reachableClasses(String className, Map<String, Set<String>> calleeClasses) {
+        Set<String> reachable = new HashSet<String>();
+        Deque<String> pending = new ArrayDeque<String>();
+        reachable.add(className);
+        pending.push(className);
+        while (!pending.isEmpty()) {
+            String next = pending.pop();
+            Set<String> callees = calleeClasses.get(next);
+            if (callees == null) {
+                callees = new HashSet<String>();
+                for (ClarkeParser.MethodDefinitionContext methodCtx : classesToCompile.get(next).methodDefinition())
+                    collectCalleeClasses(methodCtx.expr(), next, callees);
+                calleeClasses.put(next, callees);
+            }
+            for (String callee : callees)
+                if (classesToCompile.containsKey(callee) && reachable.add(callee))
+                    pending.push(callee);
+        }
+        return reachable;
+    }
+
+    private static void collectCalleeClasses(List<ClarkeParser.ExprContext> exprs, String className, Set<String> callees) {
+        for (ClarkeParser.ExprContext expr : exprs) {
+            for (ClarkeParser.GroupExprContext group : groups(expr))
+                collectCalleeClasses(group.expr(), className, callees);
+            if (expr.qualifiedName() != null)
+                callees.add(ConstantEvaluator.calleeClassName(expr.qualifiedName(), className));
+        }
+    }
+
+    // Small, non-recursive Clarke methods are compiled straight into the caller. The body is
+    // compiled against a stack holding only the arguments, so it can't reach into the caller's
+    // values, and is only spliced in if it leaves exactly the declared return value.
+    private boolean inlineCall(CodeBlock block, ClarkeParser.QualifiedNameContext ctx)
+        throws CompilerException {
+        String methodName = ConstantEvaluator.calleeMethodName(ctx);
+        String className = ConstantEvaluator.calleeClassName(ctx, lexicalClassName);
+        Map<String, Class[]> methodsOfClass = methodSigCache.get(className);
+        ClarkeParser.MethodDefinitionContext methodCtx = findMethod(className, methodName);
+        if (methodsOfClass == null || !methodsOfClass.containsKey(methodName) || methodCtx == null
+                || inlineSize(className, methodName) == Integer.MAX_VALUE)
+            return false;
+        Class[] signature = methodsOfClass.get(methodName);
+        int arity = signature.length - 1;
+        if (classStack.size() < arity)
+            return false;
+        if (isGeneric(signature))
+            signature = specialize(className, methodName, classStack.top(arity));
+        if (signature == null)
+            return false;
+        for (int i = 0; i < arity; i++)
+            if (classStack.peek(i) != signature[arity - i])
+                return false;
+        if (pendingConstants.size() > arity)
+            materializeConstants(block);
+
+        TypeStack callerStack = classStack;
+        List<Object> callerConstants = pendingConstants;
+        String callerClassName = lexicalClassName;
+        List<Integer> callerLoopIndexSlots = loopIndexSlots;
+        String callerProfiledMethod = profiledMethod;
+        classStack = new TypeStack();
+        classStack.pushAll(callerStack.top(arity));
+        pendingConstants = new ArrayList<Object>(callerConstants);
+        lexicalClassName = className;
+        loopIndexSlots = new ArrayList<Integer>(); // index means the callee's own loops only
+        profiledMethod = className + "." + methodName;
+        CodeBlock body = CodeBlock.newCodeBlock();
+        boolean exact;
+        try {
+            compileProbe(body, profiledMethod);
+            compileExprs(body, methodCtx.expr());
+            if (signature[0] == void.class)
+                exact = classStack.isEmpty();
+            else
+                exact = classStack.size() == 1 && classStack.peek() == signature[0];
+        } catch (EmptyStackException ex) {
+            exact = false;
+        } finally {
+            lexicalClassName = callerClassName;
+            loopIndexSlots = callerLoopIndexSlots;
+            profiledMethod = callerProfiledMethod;
+        }
+        if (!exact) {
+            classStack = callerStack;
+            pendingConstants = callerConstants;
+            pendingComparison = 0;
+            return false;
+        }
+        callerStack.markAll(classStack, callerStack.bottom(callerStack.size() - arity));
+        callerStack.drop(arity);
+        callerStack.pushAll(classStack.top(classStack.size()));
+        classStack = callerStack;
+        block.getInstructionList().add(body.getInstructionList());
+        if (!className.equals(jiteClass.getClassName()))
+            bodyDependencies.get(jiteClass.getClassName()).add(className);
+        return true;
+    }
+
+    // tail: the control flow is the last thing the method does, so are the ends of its branches
+    private void compileControlFlow(CodeBlock block, ClarkeParser.ControlFlowExprContext ctx, boolean tail)
+        throws CompilerException {
+        if (classStack.peek() != boolean.class)
             throw new CompilerException("Can't use control flow on non-boolean objects.");
+        if (options.optimizationLevel < 1)
+            materializeConstants(block);
+        if (!pendingConstants.isEmpty()) {
+            // the branch is known at compile time, so only that one gets compiled; the other one is
+            // still checked, so that the same programs compile at every optimization level
+            boolean condition = (Boolean) popConstant();
+            String before = classStack.toString();
+            if (ctx.ifExpr() != null) {
+                String untaken = checkDiscarded(ctx.ifExpr().groupExpr(condition ? 0 : 1).expr(), tail);
+                compileExprs(block, ctx.ifExpr().groupExpr(condition ? 1 : 0).expr(), tail);
+                String trueStack = condition ? classStack.toString() : untaken;
+                String falseStack = condition ? untaken : classStack.toString();
+                if (!trueStack.equals(falseStack))
+                    throw new CompilerException("Both branches of if must leave the same types on the stack, not "
+                            + trueStack + " and " + falseStack + ".");
+            } else {
+                String construct = ctx.whenExpr() != null ? "when" : "unless";
+                ClarkeParser.GroupExprContext body = ctx.whenExpr() != null ? ctx.whenExpr().groupExpr()
+                        : ctx.unlessExpr().groupExpr();
+                if (condition == (ctx.whenExpr() != null)) {
+                    compileExprs(block, body.expr(), tail);
+                    checkStackUnchanged(before, classStack.toString(), construct);
+                } else {
+                    checkStackUnchanged(before, checkDiscarded(body.expr(), tail), construct);
+                }
+            }
+            return;
+        }
+        classStack.pop();
+        LabelNode stopLabel = new LabelNode();
         if (ctx.ifExpr() != null) {
             LabelNode falseLabel = new LabelNode();
-            block.ifeq(falseLabel);
-            compileExprs(block, ctx.ifExpr().groupExpr(1).expr());
+            compileBranch(block, false, falseLabel);
+            // both branches start from the same stack
+            TypeStack falseStack = new TypeStack(classStack);
+            falseStack.mark(falseLabel);
+            compileProbe(block, ctx, "if", "true");
+            compileExprs(block, ctx.ifExpr().groupExpr(1).expr(), tail);
+            materializeConstants(block);
+            TypeStack trueStack = classStack;
             block.go_to(stopLabel)
                 .label(falseLabel);
-            compileExprs(block, ctx.ifExpr().groupExpr(0).expr());
+            classStack = falseStack;
+            compileProbe(block, ctx, "if", "false");
+            compileExprs(block, ctx.ifExpr().groupExpr(0).expr(), tail);
+            materializeConstants(block);
+            if (!trueStack.toString().equals(classStack.toString()))
+                throw new CompilerException("Both branches of if must leave the same types on the stack, not "
+                        + trueStack + " and " + classStack + ".");
+            classStack.mark(stopLabel);
             block.label(stopLabel);
         } else if (ctx.whenExpr() != null) {
-            block.ifeq(stopLabel);
-            compileExprs(block, ctx.whenExpr().groupExpr().expr());
+            compileBranch(block, false, stopLabel);
+            classStack.mark(stopLabel);
+            String before = classStack.toString();
+            compileProbe(block, ctx, "when", null);
+            compileExprs(block, ctx.whenExpr().groupExpr().expr(), tail);
+            materializeConstants(block);
+            checkStackUnchanged(before, "when");
             block.label(stopLabel);
         } else if (ctx.unlessExpr() != null) {
-            block.ifne(stopLabel);
-            compileExprs(block, ctx.unlessExpr().groupExpr().expr());
+            compileBranch(block, true, stopLabel);
+            classStack.mark(stopLabel);
+            String before = classStack.toString();
+            compileProbe(block, ctx, "unless", null);
+            compileExprs(block, ctx.unlessExpr().groupExpr().expr(), tail);
+            materializeConstants(block);
+            checkStackUnchanged(before, "unless");
             block.label(stopLabel);
         }
     }
 
+    // code that may be skipped or repeated has to leave the stack as it found it
+    private void checkStackUnchanged(String before, String construct)
+        throws CompilerException {
+        checkStackUnchanged(before, classStack.toString(), construct);
+    }
+
+    private void checkStackUnchanged(String before, String after, String construct)
+        throws CompilerException {
+        if (!before.equals(after))
+            throw new CompilerException("The body of " + construct + " must leave the same types on the stack, "
+                    + before + ", not " + after + ".");
+    }
+
+    // Compiles a branch that is never taken into code that is thrown away, and returns the stack it
+    // would leave. Everything it changes on the way is put back, so nothing it calls gets specialized.
+    private String checkDiscarded(List<ClarkeParser.ExprContext> exprs, boolean tail)
+        throws CompilerException {
+        TypeStack savedStack = classStack;
+        List<Object> savedConstants = pendingConstants;
+        Map<Integer, Class> savedVarTypes = varTypeMap;
+        int savedScratchSlot = scratchSlot;
+        List<Integer> savedLoopIndexSlots = loopIndexSlots;
+        Set<String> savedSpecializations = specializations;
+        Deque<Specialization> savedPendingSpecializations = pendingSpecializations;
+        classStack = new TypeStack(savedStack);
+        pendingConstants = new ArrayList<Object>(savedConstants);
+        varTypeMap = new HashMap<Integer, Class>(savedVarTypes);
+        loopIndexSlots = new ArrayList<Integer>(savedLoopIndexSlots);
+        specializations = new HashSet<String>(savedSpecializations);
+        pendingSpecializations = new ArrayDeque<Specialization>(savedPendingSpecializations);
+        try {
+            compileExprs(CodeBlock.newCodeBlock(), exprs, tail);
+            return classStack.toString();
+        } finally {
+            classStack = savedStack;
+            pendingConstants = savedConstants;
+            pendingComparison = 0;
+            varTypeMap = savedVarTypes;
+            scratchSlot = savedScratchSlot;
+            loopIndexSlots = savedLoopIndexSlots;
+            specializations = savedSpecializations;
+            pendingSpecializations = savedPendingSpecializations;
+        }
+    }
+
     private void compileLoop(CodeBlock block, ClarkeParser.LoopExprContext ctx)
             throws CompilerException {
         LabelNode startLabel = new LabelNode();
         LabelNode stopLabel = new LabelNode();
         if (ctx.whileExpr() != null) {
+            classStack.mark(startLabel);
+            String before = classStack.toString();
             block.label(startLabel);
             compileExprs(block, ctx.whileExpr().groupExpr(1).expr());
             if (classStack.pop() != boolean.class)
                 throw new CompilerException("Loop condition must return a boolean.");
-            block.ifeq(stopLabel);
+            classStack.mark(stopLabel);
+            compileBranch(block, false, stopLabel);
             compileExprs(block, ctx.whileExpr().groupExpr(0).expr());
+            materializeConstants(block);
+            checkStackUnchanged(before, "while");
+            compileProbe(block, ctx, "while", null);
             block.go_to(startLabel)
                 .label(stopLabel);
+        } else if (ctx.timesExpr() != null || ctx.rangeExpr() != null) {
+            compileCountedLoop(block, ctx.timesExpr() != null ? ctx.timesExpr().groupExpr() : ctx.rangeExpr().groupExpr(),
+                    ctx.timesExpr() != null ? "times" : "range", startLabel, stopLabel);
+        } else {
+            compileArrayLoop(block, ctx, startLabel, stopLabel);
+        }
+    }
+
+    // Moves the value on top of the stack into a local that stays live for the rest of a loop.
+    // These locals follow the arguments in the order they were stored, which the frames rely on.
+    private int storeLoopLocal(CodeBlock block) {
+        Class type = classStack.peek();
+        int slot = scratchSlot;
+        PrimitiveOperations.compileStore(block, classStack, varTypeMap, slot);
+        classStack.pushLocal(type);
+        scratchSlot += PrimitiveOperations.isTwoSlot(type) ? 2 : 1;
+        return slot;
+    }
+
+    private void releaseLoopLocals(int firstSlot, int count) {
+        for (int i = 0; i < count; i++)
+            classStack.popLocal();
+        scratchSlot = firstSlot;
+    }
+
+    // Counted loops keep their index and exclusive limit in locals and have the shape javac
+    // gives a for loop, so that HotSpot sees a loop it can unroll and range check.
+    // Returns the stack the body has to leave behind.
+    private String compileLoopHead(CodeBlock block, Class counter, int limitSlot, int indexSlot, LabelNode startLabel,
+                                   LabelNode stopLabel) {
+        loopIndexSlots.add(indexSlot);
+        classStack.mark(startLabel);
+        String before = classStack.toString();
+        block.label(startLabel);
+        PrimitiveOperations.compileLoad(block, classStack, varTypeMap, indexSlot);
+        PrimitiveOperations.compileLoad(block, classStack, varTypeMap, limitSlot);
+        classStack.drop(2);
+        if (counter == int.class) {
+            block.if_icmpge(stopLabel);
+        } else {
+            block.lcmp()
+                .ifge(stopLabel);
+        }
+        return before;
+    }
+
+    private void compileLoopTail(CodeBlock block, Class counter, int indexSlot, LabelNode startLabel, LabelNode stopLabel) {
+        if (counter == int.class) {
+            block.iinc(indexSlot, 1);
+        } else {
+            block.lload(indexSlot)
+                .ldc(1L)
+                .ladd()
+                .lstore(indexSlot);
+        }
+        block.go_to(startLabel)
+            .label(stopLabel);
+        classStack.mark(stopLabel);
+        loopIndexSlots.remove(loopIndexSlots.size() - 1);
+    }
+
+    // n { ... } times and from to { ... } range count an int or long index up by one to an
+    // exclusive limit
+    private void compileCountedLoop(CodeBlock block, ClarkeParser.GroupExprContext body, String construct,
+                                    LabelNode startLabel, LabelNode stopLabel)
+        throws CompilerException {
+        Class counter = classStack.peek();
+        if (counter != int.class && counter != long.class)
+            throw new CompilerException("The limit of " + construct + " must be an int or a long, not " + counter + ".");
+        if (construct.equals("range") && classStack.peek(1) != counter)
+            throw new CompilerException("Both ends of range must have the same type, not "
+                    + classStack.peek(1) + " and " + counter + ".");
+        int limitSlot = storeLoopLocal(block);
+        if (construct.equals("times")) {
+            if (counter == int.class)
+                block.iconst_0();
+            else
+                block.lconst_0();
+            classStack.push(counter);
+        }
+        int indexSlot = storeLoopLocal(block);
+        String before = compileLoopHead(block, counter, limitSlot, indexSlot, startLabel, stopLabel);
+        compileExprs(block, body.expr());
+        materializeConstants(block);
+        checkStackUnchanged(before, construct);
+        compileProbe(block, body.getParent(), construct, null);
+        compileLoopTail(block, counter, indexSlot, startLabel, stopLabel);
+        releaseLoopLocals(limitSlot, 2);
+    }
+
+    // array { ... } each, array { ... } map and array init { ... } fold run the body on every
+    // element in order, with index at its position. Elements are loaded with the array
+    // instruction of their type inside a counted loop, which the JIT can also vectorize.
+    // map writes what the body leaves into a new array of the same type.
+    private void compileArrayLoop(CodeBlock block, ClarkeParser.LoopExprContext ctx, LabelNode startLabel,
+                                  LabelNode stopLabel)
+        throws CompilerException {
+        boolean map = ctx.mapExpr() != null;
+        boolean fold = ctx.foldExpr() != null;
+        String construct = map ? "map" : fold ? "fold" : "each";
+        ClarkeParser.GroupExprContext body = map ? ctx.mapExpr().groupExpr() : fold ? ctx.foldExpr().groupExpr()
+                : ctx.eachExpr().groupExpr();
+        if (!classStack.peek(fold ? 1 : 0).isArray())
+            throw new CompilerException(construct + " needs an array" + (fold ? " and an initial value." : "."));
+        // the accumulator of fold stays on the stack, under the elements
+        if (fold)
+            PrimitiveOperations.compileSwap(block, classStack);
+        Class elementType = classStack.peek().getComponentType();
+        PrimitiveOperations.checkElementType(elementType);
+        int arraySlot = storeLoopLocal(block);
+        PrimitiveOperations.compileLoad(block, classStack, varTypeMap, arraySlot);
+        PrimitiveOperations.compileArrayLength(block, classStack);
+        int limitSlot = storeLoopLocal(block);
+        block.iconst_0();
+        classStack.push(int.class);
+        int indexSlot = storeLoopLocal(block);
+        int resultSlot = -1;
+        if (map) {
+            PrimitiveOperations.compileLoad(block, classStack, varTypeMap, limitSlot);
+            PrimitiveOperations.compileNewArray(block, classStack, elementType);
+            resultSlot = storeLoopLocal(block);
+        }
+
+        String before = compileLoopHead(block, int.class, limitSlot, indexSlot, startLabel, stopLabel);
+        PrimitiveOperations.compileLoad(block, classStack, varTypeMap, arraySlot);
+        PrimitiveOperations.compileLoad(block, classStack, varTypeMap, indexSlot);
+        PrimitiveOperations.compileArrayLoad(block, classStack);
+        compileExprs(block, body.expr());
+        materializeConstants(block);
+        if (map)
+            PrimitiveOperations.compileStore(block, classStack, varTypeMap, scratchSlot);
+        checkStackUnchanged(before, construct);
+        if (map) {
+            PrimitiveOperations.compileLoad(block, classStack, varTypeMap, resultSlot);
+            PrimitiveOperations.compileLoad(block, classStack, varTypeMap, indexSlot);
+            PrimitiveOperations.compileLoad(block, classStack, varTypeMap, scratchSlot);
+            PrimitiveOperations.compileArrayStore(block, classStack);
         }
+        compileProbe(block, ctx, construct, null);
+        compileLoopTail(block, int.class, indexSlot, startLabel, stopLabel);
+        if (map)
+            PrimitiveOperations.compileLoad(block, classStack, varTypeMap, resultSlot);
+        releaseLoopLocals(arraySlot, map ? 4 : 3);
+    }
+
+    private void compileLoopIndex(CodeBlock block)
+        throws CompilerException {
+        if (loopIndexSlots.isEmpty())
+            throw new CompilerException("index can only be used in the body of a counted loop.");
+        PrimitiveOperations.compileLoad(block, classStack, varTypeMap, loopIndexSlots.get(loopIndexSlots.size() - 1));
     }
 
     private void compileCachedStaticMethodCall(CodeBlock block, String slashedClassName, String methodName, Class[] signature) {
         if (paramsMatchStack(ArrayUtils.subarray(signature, 1, signature.length + 1))) {
             block.invokestatic(slashedClassName, methodName, sig(signature));
-            classStack.push(signature[0]);
+            if (signature[0] != void.class)
+                classStack.push(signature[0]);
         }
     }
 
-    private void compileReflectedStaticMethodCall(CodeBlock block, Class klass, String methodName) {
-        for (Method method : klass.getMethods()) {
-            if (method.getName().equals(methodName) && (method.getModifiers() & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC) {
-                Class[] paramTypes = method.getParameterTypes();
-                if (paramsMatchStack(paramTypes)) {
-                    block.invokestatic(klass.getCanonicalName().replace('.', '/'), methodName,
-                            sig(ArrayUtils.add(paramTypes, 0, method.getReturnType())));
-                    classStack.push(method.getReturnType());
-                    break;
-                }
-            }
+    // A generic method is compiled again for every combination of argument types it is called with,
+    // as a method of the calling class named after them, like square$I for square ∷ a → a on an int,
+    // or Numbers$square$I when it comes from the class Numbers. The specializations are queued and
+    // compiled after the methods of the class, so each one does its arithmetic on the actual types.
+    private void compileSpecializedCall(CodeBlock block, String className, String methodName, int arity)
+        throws CompilerException {
+        Class[] signature = classStack.size() < arity ? null : specialize(className, methodName, classStack.top(arity));
+        if (signature == null)
+            throw new CompilerException("No specialization of " + className + "." + methodName + " can be called with "
+                    + classStack + " on the stack.");
+        StringBuilder name = new StringBuilder();
+        if (!className.equals(jiteClass.getClassName()))
+            name.append(className.replace('.', '$')).append('$');
+        name.append(methodName);
+        for (int i = 1; i < signature.length; i++)
+            name.append('$').append(Type.getDescriptor(signature[i]).replace('/', '_').replace(';', '_').replace('[', '_'));
+        if (specializations.add(name.toString())) {
+            if (specializationDepth >= MAX_SPECIALIZATION_DEPTH)
+                throw new CompilerException("Specializing " + className + "." + methodName + " for "
+                        + Arrays.toString(ArrayUtils.subarray(signature, 1, signature.length))
+                        + " needs more than " + MAX_SPECIALIZATION_DEPTH + " nested specializations.");
+            pendingSpecializations.add(new Specialization(className, methodName, name.toString(), signature,
+                    specializationDepth + 1));
         }
+        // the specialization is compiled from the body of the generic method
+        if (!className.equals(jiteClass.getClassName()))
+            bodyDependencies.get(jiteClass.getClassName()).add(className);
+        compileCachedStaticMethodCall(block, classNameSlashed, name.toString(), signature);
+    }
+
+    // Calls into Java are compiled to invokedynamic and linked by ClarkeBootstrap, which picks the
+    // overload the same way; here it only decides how many values the call takes and what it
+    // returns. Class files for Java 6 can't contain invokedynamic, so there the method is called
+    // directly and the stack has to match its parameters exactly.
+    private void compileJavaStaticMethodCall(CodeBlock block, String className, String methodName)
+        throws ClassNotFoundException, CompilerException {
+        List<Class[]> overloads = symbols.staticMethods(className, methodName, classStack.size());
+        for (int arity = overloads.isEmpty() ? -1 : overloads.get(0).length - 1; arity >= 0; arity--) {
+            Class[] arguments = classStack.top(arity);
+            Class[] signature = resolveJavaCall(overloads, arguments, className + "." + methodName);
+            if (signature == null)
+                continue;
+            // before Java 8 class files, invokestatic can't name an interface method
+            if (options.target < 7 && symbols.resolveClass(className).isInterface())
+                throw new CompilerException("Calling the interface method " + className + "." + methodName
+                        + " needs --target 7 or later.");
+            classStack.drop(arity);
+            if (options.target < 7)
+                block.invokestatic(className.replace('.', '/'), methodName, sig(signature));
+            else
+                block.invokedynamic(methodName, sig(signature[0], arguments), LINK_STATIC, className);
+            if (signature[0] != void.class)
+                classStack.push(signature[0]);
+            return;
+        }
+        throw new CompilerException("No method " + className + "." + methodName + " can be called with " + classStack + " on the stack.");
+    }
+
+    // #name calls the instance method name on the value below its arguments, taking as many of
+    // them as it can.
+    private void compileJavaInstanceCall(CodeBlock block, String methodName)
+        throws ClassNotFoundException, CompilerException {
+        for (int arity = classStack.size() - 1; arity >= 0; arity--) {
+            Class receiver = classStack.peek(arity);
+            if (receiver.isPrimitive())
+                continue;
+            List<Class[]> overloads = symbols.instanceMethods(receiver.getName(), methodName, arity);
+            Class[] signature = resolveJavaCall(overloads, classStack.top(arity), receiver.getName() + "." + methodName);
+            if (signature == null)
+                continue;
+            Class[] arguments = classStack.top(arity + 1);
+            classStack.drop(arity + 1);
+            if (options.target >= 7)
+                block.invokedynamic(methodName, sig(signature[0], arguments), LINK_VIRTUAL);
+            else if (receiver.isInterface())
+                block.invokeinterface(Type.getInternalName(receiver), methodName, sig(signature));
+            else
+                block.invokevirtual(Type.getInternalName(receiver), methodName, sig(signature));
+            if (signature[0] != void.class)
+                classStack.push(signature[0]);
+            return;
+        }
+        throw new CompilerException("No method #" + methodName + " can be called with " + classStack + " on the stack.");
+    }
+
+    // the overload taking exactly these arguments that javac would pick, or null if none fits
+    private Class[] resolveJavaCall(List<Class[]> overloads, Class[] arguments, String name)
+        throws CompilerException {
+        List<Class[]> candidates = new ArrayList<Class[]>();
+        for (Class[] signature : overloads)
+            if (signature.length - 1 == arguments.length)
+                candidates.add(signature);
+        int chosen = OverloadResolver.resolve(candidates, arguments);
+        if (chosen == OverloadResolver.AMBIGUOUS)
+            throw new CompilerException("Ambiguous call of " + name + " with " + Arrays.toString(arguments) + ".");
+        if (chosen == OverloadResolver.NOT_APPLICABLE)
+            return null;
+        Class[] signature = candidates.get(chosen);
+        if (options.target < 7 && !Arrays.equals(ArrayUtils.subarray(signature, 1, signature.length), arguments))
+            throw new CompilerException("Calling " + name + " with " + Arrays.toString(arguments)
+                    + " converts arguments, which needs --target 7 or later.");
+        return signature;
     }
 
     private void compileMethodCall(CodeBlock block, ClarkeParser.QualifiedNameContext ctx)
         throws CompilerException {
-        List<TerminalNode> qualifiedName = ctx.ID();
-        String methodName = qualifiedName.get(qualifiedName.size() - 1).getText();
-        String className;
-        if (qualifiedName.size() == 1)
-            className = jiteClass.getClassName();
-        else
-            className = StringUtils.join(qualifiedName.subList(0, qualifiedName.size() - 1), ".");
+        String methodName = ConstantEvaluator.calleeMethodName(ctx);
+        String className = ConstantEvaluator.calleeClassName(ctx, lexicalClassName);
         if (methodSigCache.containsKey(className)) {
             Map<String, Class[]> methodsOfClass = methodSigCache.get(className);
-            if (methodsOfClass.containsKey(methodName))
+            if (!className.equals(jiteClass.getClassName()))
+                classDependencies.get(jiteClass.getClassName()).add(className);
+            if (methodsOfClass.containsKey(methodName) && isGeneric(methodsOfClass.get(methodName)))
+                compileSpecializedCall(block, className, methodName, methodsOfClass.get(methodName).length - 1);
+            else if (methodsOfClass.containsKey(methodName))
                 compileCachedStaticMethodCall(block, className.replace('.', '/'), methodName, methodsOfClass.get(methodName));
         } else {
             try {
-                Class klass = ClassLoader.getSystemClassLoader().loadClass(className);
-                compileReflectedStaticMethodCall(block, klass, methodName);
+                compileJavaStaticMethodCall(block, className, methodName);
             } catch (ClassNotFoundException ex) {
                 throw new CompilerException("Could not find class " + className + " on the classpath.", ex);
             }
         }
     }
 
+    private void compileInstanceCall(CodeBlock block, ClarkeParser.InstanceCallContext ctx)
+        throws CompilerException {
+        try {
+            compileJavaInstanceCall(block, ctx.getText().substring(1));
+        } catch (ClassNotFoundException ex) {
+            throw new CompilerException("Could not find class " + ex.getMessage() + " on the classpath.", ex);
+        }
+    }
+
+    // A call of the method being compiled that is the last thing it does, with nothing on
+    // the stack but the arguments: store them over the old ones and jump back to the start.
+    private boolean compileTailCall(CodeBlock block, ClarkeParser.QualifiedNameContext ctx) {
+        if (!ConstantEvaluator.calleeMethodName(ctx).equals(methodName)
+                || !ConstantEvaluator.calleeClassName(ctx, lexicalClassName).equals(lexicalClassName)
+                || classStack.size() != methodSignature.length - 1
+                || !paramsMatchStack(ArrayUtils.subarray(methodSignature, 1, methodSignature.length)))
+            return false;
+        compileArgumentsStore(block, methodSignature);
+        block.go_to(methodStart);
+        // nothing after this runs, but the types have to line up with the other branches
+        if (methodSignature[0] != void.class)
+            classStack.push(methodSignature[0]);
+        return true;
+    }
+
     private boolean paramsMatchStack(Class[] paramTypes) {
-        if (paramTypes.length == 0)
-            return true;
         if (classStack.size() < paramTypes.length)
             return false;
-        List<Class> poppedClasses = new LinkedList<Class>();
-        for (int i = paramTypes.length - 1; i >= 0; i--) {
-            Class currentStackClass = classStack.pop();
-            poppedClasses.add(currentStackClass);
-            if (!paramTypes[i].equals(currentStackClass)) {
-                for (Class klass : poppedClasses)
-                    classStack.push(klass);
+        for (int i = 0; i < paramTypes.length; i++)
+            if (paramTypes[paramTypes.length - 1 - i] != classStack.peek(i))
                 return false;
-            }
-        }
+        classStack.drop(paramTypes.length);
         return true;
     }
 
@@ -215,46 +1110,112 @@ public class ClassGenerator extends ClarkeBaseListener {
                 signature.add(resolveType(ctx.typeSignature().returnType().typeName()));
             else
                 signature.add(void.class);
+            Set<String> typeVariables = new HashSet<String>();
             if (ctx.typeSignature().argTypes() != null) {
                 for (ClarkeParser.TypeNameContext typeName : ctx.typeSignature().argTypes().typeName()) {
                     Class argClass = resolveType(typeName);
                     signature.add(argClass);
+                    if (isTypeVariable(typeName))
+                        typeVariables.add(typeVariable(typeName));
                 }
             }
+            ClarkeParser.ReturnTypeContext returnType = ctx.typeSignature().returnType();
+            if (returnType != null && isTypeVariable(returnType.typeName()) && !typeVariables.contains(typeVariable(returnType.typeName())))
+                throw new CompilerException("The type variable " + typeVariable(returnType.typeName()) + " returned by "
+                        + ctx.qualifiedName().getText() + " has to be the type of one of its arguments.");
         } else {
             signature.add(void.class);
         }
         return signature.toArray(new Class[signature.size()]);
     }
 
-    private void compileArgumentsLoad(CodeBlock block, Class[] signature) {
+    // returns the first local slot after the arguments
+    private int compileArgumentsLoad(CodeBlock block, Class[] signature) {
+        int slot = 0;
         for (int i = 1; i < signature.length; i++) {
             if (signature[i] == boolean.class || signature[i] == int.class)
-                block.iload(i - 1);
+                block.iload(slot);
             else if (signature[i] == long.class)
-                block.lload(i - 1);
+                block.lload(slot);
             else if (signature[i] == float.class)
-                block.fload(i - 1);
+                block.fload(slot);
             else if (signature[i] == double.class)
-                block.dload(i - 1);
+                block.dload(slot);
             else
-                block.aload(i - 1);
+                block.aload(slot);
+            slot += PrimitiveOperations.isTwoSlot(signature[i]) ? 2 : 1;
+        }
+        return slot;
+    }
+
+    private void compileArgumentsStore(CodeBlock block, Class[] signature) {
+        int[] slots = new int[signature.length];
+        for (int i = 1; i < signature.length - 1; i++)
+            slots[i + 1] = slots[i] + (PrimitiveOperations.isTwoSlot(signature[i]) ? 2 : 1);
+        for (int i = signature.length - 1; i >= 1; i--) {
+            if (signature[i] == boolean.class || signature[i] == int.class)
+                block.istore(slots[i]);
+            else if (signature[i] == long.class)
+                block.lstore(slots[i]);
+            else if (signature[i] == float.class)
+                block.fstore(slots[i]);
+            else if (signature[i] == double.class)
+                block.dstore(slots[i]);
+            else
+                block.astore(slots[i]);
         }
     }
 
     private void compileExprs(CodeBlock block, Collection<ClarkeParser.ExprContext> exprs)
         throws CompilerException {
-        for (ClarkeParser.ExprContext expr : exprs) {
-            if (expr.literal() != null)
-                compilePushLiteral(block, expr.literal());
-            else if (expr.PrimitiveOperation() != null)
-                PrimitiveOperations.compilePrimitiveOperation(block, classStack, varTypeMap, expr.PrimitiveOperation());
-            else if (expr.controlFlowExpr() != null)
-                compileControlFlow(block, expr.controlFlowExpr());
-            else if (expr.loopExpr() != null)
+        compileExprs(block, exprs, false);
+    }
+
+    // tail: the last expression is the last thing the method does before returning
+    private void compileExprs(CodeBlock block, Collection<ClarkeParser.ExprContext> exprs, boolean tail)
+        throws CompilerException {
+        Iterator<ClarkeParser.ExprContext> it = exprs.iterator();
+        while (it.hasNext()) {
+            ClarkeParser.ExprContext expr = it.next();
+            boolean last = tail && !it.hasNext();
+            if (expr.controlFlowExpr() == null)
+                materializeComparison(block);
+            if (expr.literal() != null) {
+                compilePushLiteral(expr.literal());
+            } else if (expr.primitiveOperation() != null) {
+                int op = expr.primitiveOperation().getStart().getType();
+                if (op == ClarkeLexer.Pick) {
+                    compileShuffle(block, pickShuffle());
+                } else if (options.optimizationLevel < 1 || !foldPrimitiveOperation(op)) {
+                    materializeConstants(block);
+                    if (options.optimizationLevel >= 1 && PrimitiveOperations.isComparison(op))
+                        compileComparison(block, op);
+                    else
+                        PrimitiveOperations.compilePrimitiveOperation(block, classStack, varTypeMap, scratchSlot, op,
+                                options.bufferedOutput);
+                }
+            } else if (expr.controlFlowExpr() != null) {
+                compileControlFlow(block, expr.controlFlowExpr(), last);
+            } else if (expr.loopExpr() != null) {
+                materializeConstants(block);
                 compileLoop(block, expr.loopExpr());
-            else if (expr.qualifiedName() != null)
-                compileMethodCall(block, expr.qualifiedName());
+            } else if (expr.loopIndex() != null) {
+                materializeConstants(block);
+                compileLoopIndex(block);
+            } else if (expr.newArray() != null) {
+                materializeConstants(block);
+                PrimitiveOperations.compileNewArray(block, classStack, resolveType(expr.newArray().typeName()));
+            } else if (expr.qualifiedName() != null) {
+                if (options.optimizationLevel < 1
+                        || !evaluatePureCall(expr.qualifiedName()) && !inlineCall(block, expr.qualifiedName())) {
+                    materializeConstants(block);
+                    if (!last || !compileTailCall(block, expr.qualifiedName()))
+                        compileMethodCall(block, expr.qualifiedName());
+                }
+            } else if (expr.instanceCall() != null) {
+                materializeConstants(block);
+                compileInstanceCall(block, expr.instanceCall());
+            }
         }
     }
 
@@ -273,17 +1234,106 @@ public class ClassGenerator extends ClarkeBaseListener {
             block.areturn();
     }
 
-    private void compileMethod(ClarkeParser.MethodDefinitionContext ctx, Class[] signature)
+    // With --profile, counts how often the code at this point runs: method entries, loop back-edges
+    // and the arms of conditionals. Every probe is an invokedynamic call site that Profile links to
+    // a counter of its own, so once linked it costs one LongAdder.increment(). Without --profile
+    // nothing is emitted.
+    private void compileProbe(CodeBlock block, String probe) {
+        if (options.profile)
+            block.invokedynamic("probe", sig(void.class), PROBE, probe);
+    }
+
+    // a construct is named after its method and where it starts, like Fib.fib if 2:14 true
+    private void compileProbe(CodeBlock block, ParserRuleContext ctx, String construct, String arm) {
+        if (options.profile)
+            compileProbe(block, profiledMethod + " " + construct + " " + ctx.getStart().getLine() + ":"
+                    + (ctx.getStart().getCharPositionInLine() + 1) + (arm == null ? "" : " " + arm));
+    }
+
+    // Boxes the whole stack into an Object[], bottom first, and remembers its types in returnedStack.
+    // The values go through locals past the arguments, top first, because the array has to be below them.
+    private void compileStackArray(CodeBlock block) {
+        int size = classStack.size();
+        returnedStack = new Class[size];
+        int[] slots = new int[size];
+        int slot = scratchSlot;
+        for (int i = size - 1; i >= 0; i--) {
+            Class type = classStack.pop();
+            returnedStack[i] = type;
+            slots[i] = slot;
+            if (type == boolean.class || type == int.class)
+                block.istore(slot);
+            else if (type == long.class)
+                block.lstore(slot);
+            else if (type == float.class)
+                block.fstore(slot);
+            else if (type == double.class)
+                block.dstore(slot);
+            else
+                block.astore(slot);
+            slot += PrimitiveOperations.isTwoSlot(type) ? 2 : 1;
+        }
+        block.pushInt(size).anewarray(p(Object.class));
+        for (int i = 0; i < size; i++) {
+            Class type = returnedStack[i];
+            block.dup().pushInt(i);
+            if (type == boolean.class || type == int.class)
+                block.iload(slots[i]);
+            else if (type == long.class)
+                block.lload(slots[i]);
+            else if (type == float.class)
+                block.fload(slots[i]);
+            else if (type == double.class)
+                block.dload(slots[i]);
+            else
+                block.aload(slots[i]);
+            if (type.isPrimitive()) {
+                Class wrapper = ClassUtils.primitiveToWrapper(type);
+                block.invokestatic(p(wrapper), "valueOf", sig(wrapper, type));
+            }
+            block.aastore();
+        }
+        classStack.push(Object[].class);
+    }
+
+    // name: the name of the generated method, which is that of a specialization for generic methods
+    private void compileMethod(ClarkeParser.MethodDefinitionContext ctx, String name, Class[] signature)
         throws CompilerException {
-        classStack = new Stack<Class>();
+        long start = System.nanoTime();
+        classStack = new TypeStack();
         varTypeMap = new HashMap<Integer, Class>();
-        for (Class argClass : ArrayUtils.subarray(signature, 0, signature.length))
+        pendingConstants = new ArrayList<Object>();
+        pendingComparison = 0;
+        loopIndexSlots = new ArrayList<Integer>();
+        methodName = ctx.qualifiedName().getText();
+        profiledMethod = lexicalClassName + "." + methodName;
+        methodSignature = signature;
+        methodStart = new LabelNode();
+        classStack.mark(methodStart);
+        for (Class argClass : ArrayUtils.subarray(signature, 1, signature.length))
             classStack.push(argClass);
         CodeBlock block = CodeBlock.newCodeBlock();
-        compileArgumentsLoad(block, signature);
-        compileExprs(block, ctx.expr());
+        block.label(methodStart);
+        compileProbe(block, profiledMethod);
+        scratchSlot = compileArgumentsLoad(block, signature);
+        // a REPL line returns its stack, the specializations it calls return what they are declared to
+        boolean returnStack = returnsStack && specializationDepth == 0;
+        try {
+            compileExprs(block, ctx.expr(), !returnStack);
+        } catch (EmptyStackException ex) {
+            throw new CompilerException("Stack underflow in " + jiteClass.getClassName() + "." + name + ".");
+        }
+        materializeConstants(block);
+        if (returnStack)
+            compileStackArray(block);
+        if (options.bufferedOutput && methodName.equals("main"))
+            PrimitiveOperations.compileFlush(block, true);
         compileReturn(block, signature[0]);
-        jiteClass.defineMethod(ctx.qualifiedName().getText(),
+        PeepholeOptimizer.optimize(block.getInstructionList(), options.optimizationLevel);
+        StackMapFrames.insert(block.getInstructionList(), signature, classStack.frames());
+        CompilerEvents.methodCompiled(jiteClass.getClassName(), name, block.getInstructionList().size(),
+                System.nanoTime() - start);
+        jiteClass.defineMethod(name,
                 Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC,
                 sig(signature), block);
     }
@@ -291,6 +1341,8 @@ public class ClassGenerator extends ClarkeBaseListener {
     @Override public void exitClassDefinition(ClarkeParser.ClassDefinitionContext ctx) {
         String name = ctx.qualifiedName().getText();
         classesToCompile.put(name, ctx);
+        // the program node would keep every class reachable from every other one through its parent
+        ctx.getParent().removeLastChild();
     }
 
 }
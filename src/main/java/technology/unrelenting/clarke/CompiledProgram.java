@@ -0,0 +1,93 @@
+package technology.unrelenting.clarke;
+
+import me.qmx.jitescript.JiteClass;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+import static me.qmx.jitescript.util.CodegenUtils.c;
+
+public class CompiledProgram {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    private final Map<String, byte[]> classBytes;
+    private final ProgramClassLoader classLoader;
+    private final long size;
+    private volatile Map<String, MethodHandle> entryPoints;
+
+    public CompiledProgram(List<JiteClass> jiteClasses, ClassLoader parent) {
+        Map<String, byte[]> bytes = new LinkedHashMap<String, byte[]>();
+        long totalSize = 0;
+        for (JiteClass jiteClass : jiteClasses) {
+            byte[] classBytes = jiteClass.toBytes();
+            bytes.put(c(jiteClass.getClassName()), classBytes);
+            totalSize += classBytes.length;
+        }
+        this.classBytes = Collections.unmodifiableMap(bytes);
+        this.classLoader = new ProgramClassLoader(parent, this.classBytes);
+        this.size = totalSize;
+    }
+
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    public Set<String> getClassNames() {
+        return classBytes.keySet();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public Class loadClass(String className)
+        throws ClassNotFoundException {
+        return classLoader.loadClass(className);
+    }
+
+    public MethodHandle entryPoint(String className, String methodName)
+        throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException {
+        // Clarke method names are unique within a class, so the name alone identifies the overload
+        for (Method method : loadClass(className).getDeclaredMethods())
+            if (method.getName().equals(methodName) && Modifier.isStatic(method.getModifiers()))
+                return LOOKUP.unreflect(method);
+        throw new NoSuchMethodException(className + "." + methodName);
+    }
+
+    public Map<String, MethodHandle> entryPoints()
+        throws ClassNotFoundException, IllegalAccessException {
+        Map<String, MethodHandle> result = entryPoints;
+        if (result == null) {
+            result = new LinkedHashMap<String, MethodHandle>();
+            for (String className : classBytes.keySet())
+                for (Method method : loadClass(className).getDeclaredMethods())
+                    if (Modifier.isPublic(method.getModifiers()) && Modifier.isStatic(method.getModifiers()))
+                        result.put(className + "." + method.getName(), LOOKUP.unreflect(method));
+            result = Collections.unmodifiableMap(result);
+            entryPoints = result;
+        }
+        return result;
+    }
+
+    private static class ProgramClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classBytes;
+
+        ProgramClassLoader(ClassLoader parent, Map<String, byte[]> classBytes) {
+            super(parent);
+            this.classBytes = classBytes;
+        }
+
+        @Override protected Class<?> findClass(String name)
+            throws ClassNotFoundException {
+            byte[] bytes = classBytes.get(name);
+            if (bytes == null)
+                throw new ClassNotFoundException(name);
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+}
@@ -1,41 +1,501 @@
 package technology.unrelenting.clarke;
 
 import me.qmx.jitescript.JiteClass;
-import org.antlr.v4.runtime.ANTLRInputStream;
-import org.antlr.v4.runtime.CommonTokenStream;
-import org.antlr.v4.runtime.TokenStream;
-import org.apache.commons.lang3.StringUtils;
+import me.qmx.jitescript.internal.org.objectweb.asm.ClassReader;
+import me.qmx.jitescript.internal.org.objectweb.asm.ClassVisitor;
+import me.qmx.jitescript.internal.org.objectweb.asm.MethodVisitor;
+import me.qmx.jitescript.internal.org.objectweb.asm.Opcodes;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+
+import static me.qmx.jitescript.util.CodegenUtils.c;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
 
 public class Compiler {
 
-    public static List<JiteClass> compileClasses(String input)
-        throws CompilerException {
-        ANTLRInputStream inputStream = new ANTLRInputStream(input);
-        ClarkeLexer lexer = new ClarkeLexer(inputStream);
+    static ClarkeParser.ProgramContext parse(String input, ClassGenerator generator) {
+        return parse(new ANTLRInputStream(input), generator);
+    }
+
+    // Most input parses in SLL mode, which is much faster than full LL because it doesn't have
+    // to track the context of every rule. It gives up at the first error, though, and can reject
+    // input that LL accepts, so when it fails the input is parsed again with LL and the usual
+    // error reporting and recovery. Classes from the failed attempt are replaced when the second
+    // parse reaches them again.
+    static ClarkeParser.ProgramContext parse(CharStream input, ClassGenerator generator) {
+        return parse(input, generator, ConsoleErrorListener.INSTANCE);
+    }
+
+    // errors: where the syntax errors of the LL parse go
+    static ClarkeParser.ProgramContext parse(CharStream input, ClassGenerator generator, ANTLRErrorListener errors) {
+        ClarkeLexer lexer = new ClarkeLexer(input);
         TokenStream tokenStream = new CommonTokenStream(lexer);
         ClarkeParser parser = new ClarkeParser(tokenStream);
-        ClassGenerator generator = new ClassGenerator();
         parser.addParseListener(generator);
-        parser.program();
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        try {
+            return parser.program();
+        } catch (ParseCancellationException ex) {
+            parser.reset();
+            parser.addErrorListener(errors);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            return parser.program();
+        }
+    }
+
+    public static List<JiteClass> compileClasses(String input)
+        throws CompilerException {
+        return compileClasses(input, new CompilerOptions());
+    }
+
+    public static List<JiteClass> compileClasses(String input, CompilerOptions options)
+        throws CompilerException {
+        ClassGenerator generator = new ClassGenerator(options);
+        long start = System.nanoTime();
+        parse(input, generator);
+        CompilerStats.record(options, CompilerStats.PARSE, start, 1);
         return generator.generate();
     }
 
+    public static Map<String, byte[]> compileFiles(List<Path> paths, BuildCache cache)
+        throws CompilerException, IOException {
+        return compileFiles(paths, new CompilerOptions(), cache, null);
+    }
+
+    // Compiles a set of source files as one program, so classes can call into other files.
+    // Returns the bytecode of every class that had to be generated; with a cache, classes
+    // that were unchanged since the previous build are left out. With a pool, files are parsed
+    // and classes are generated concurrently; the output is the same as a sequential build.
+    public static Map<String, byte[]> compileFiles(List<Path> paths, CompilerOptions options, BuildCache cache, ForkJoinPool pool)
+        throws CompilerException, IOException {
+        if (cache != null)
+            cache.useOptions(options.fingerprint());
+        // every file is read once, when it is hashed or parsed; the bytes read for the hash are
+        // kept until the file is parsed or the build ends, and no file stays open
+        Map<String, Path> sources = new LinkedHashMap<String, Path>();
+        for (Path path : paths)
+            sources.put(path.toAbsolutePath().normalize().toString(), path);
+        Map<String, String> fileHashes = new HashMap<String, String>();
+        Map<String, ByteBuffer> contents = new ConcurrentHashMap<String, ByteBuffer>();
+        if (cache != null) {
+            long start = System.nanoTime();
+            for (String file : sources.keySet()) {
+                ByteBuffer bytes = readBytes(sources.get(file));
+                fileHashes.put(file, ClassCache.hash(bytes.duplicate()));
+                contents.put(file, bytes);
+            }
+            CompilerStats.record(options, CompilerStats.READ, start, 0);
+        }
+
+        ClassGenerator generator = new ClassGenerator(options);
+        Map<String, List<String>> fileClasses = new HashMap<String, List<String>>();
+        Set<String> filesToParse = new LinkedHashSet<String>();
+        for (String file : sources.keySet()) {
+            if (cache != null && fileHashes.get(file).equals(cache.fileHash(file))) {
+                fileClasses.put(file, cache.fileClasses(file));
+                for (String className : cache.fileClasses(file))
+                    generator.methodSigCache.put(className, BuildCache.decodeSignatures(cache.signatures(className)));
+            } else {
+                filesToParse.add(file);
+            }
+        }
+        Set<String> parsedFiles = new HashSet<String>(filesToParse);
+        fileClasses.putAll(parseFiles(sources, contents, filesToParse, options, generator, pool));
+
+        Set<String> classesToGenerate = new LinkedHashSet<String>();
+        Map<String, String> signatureHashes = new HashMap<String, String>();
+        if (cache == null) {
+            for (String file : sources.keySet())
+                classesToGenerate.addAll(fileClasses.get(file));
+        } else {
+            for (String className : generator.methodSigCache.keySet())
+                signatureHashes.put(className, ClassCache.hash(BuildCache.encodeSignatures(generator.methodSigCache.get(className))));
+            // calls evaluated at compile time depend on the body of the callee, not just its signature
+            for (String file : sources.keySet())
+                for (String className : fileClasses.get(file))
+                    signatureHashes.put("body:" + className, parsedFiles.contains(file)
+                            ? sourceHash(generator.classesToCompile, className) : cache.sourceHash(className));
+            for (String file : sources.keySet()) {
+                for (String className : fileClasses.get(file)) {
+                    String cachedHash = cache.sourceHash(className);
+                    if (cachedHash == null)
+                        classesToGenerate.add(className);
+                    else if (parsedFiles.contains(file) && !sourceHash(generator.classesToCompile, className).equals(cachedHash))
+                        classesToGenerate.add(className);
+                    else if (!dependenciesUnchanged(cache.dependencies(className), signatureHashes))
+                        classesToGenerate.add(className);
+                }
+            }
+
+            // classes whose callees changed signature may live in files we have not parsed yet, and
+            // the classes that are generated again may specialize generic methods of unchanged files
+            filesToParse.clear();
+            for (String file : sources.keySet())
+                if (!parsedFiles.contains(file) && (!Collections.disjoint(fileClasses.get(file), classesToGenerate)
+                        || !classesToGenerate.isEmpty() && definesGenericMethods(generator, fileClasses.get(file))))
+                    filesToParse.add(file);
+            parseFiles(sources, contents, filesToParse, options, generator, pool);
+        }
+
+        Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        for (GeneratedClass generated : generateClasses(generator, classesToGenerate, cache != null, pool)) {
+            if (cache != null) {
+                Map<String, String> dependencies = new HashMap<String, String>();
+                for (String dependency : generated.dependencies)
+                    dependencies.put(dependency, signatureHashes.get(dependency));
+                for (String dependency : generated.bodyDependencies)
+                    dependencies.put("body:" + dependency, signatureHashes.get("body:" + dependency));
+                cache.putClass(generated.name, generated.sourceHash,
+                        BuildCache.encodeSignatures(generator.methodSigCache.get(generated.name)), dependencies, generated.bytes);
+            }
+            result.put(c(generated.name), generated.bytes);
+        }
+
+        if (cache != null) {
+            Set<String> liveClasses = new HashSet<String>();
+            for (String file : sources.keySet()) {
+                cache.putFile(file, fileHashes.get(file), fileClasses.get(file));
+                liveClasses.addAll(fileClasses.get(file));
+            }
+            for (String file : cache.files())
+                if (!sources.containsKey(file))
+                    cache.removeFile(file);
+            for (String className : cache.classNames())
+                if (!liveClasses.contains(className))
+                    cache.removeClass(className);
+            cache.save();
+        }
+        return result;
+    }
+
+    // Every file gets its own generator to collect parse trees and build a signature table;
+    // the results are merged into the given generator in file order.
+    private static Map<String, List<String>> parseFiles(final Map<String, Path> sources, final Map<String, ByteBuffer> contents,
+                                                        Collection<String> files,
+                                                        final CompilerOptions options, ClassGenerator generator,
+                                                        ForkJoinPool pool)
+        throws CompilerException {
+        Map<String, Callable<ClassGenerator>> tasks = new LinkedHashMap<String, Callable<ClassGenerator>>();
+        for (final String file : files) {
+            tasks.put(file, new Callable<ClassGenerator>() {
+                @Override public ClassGenerator call() throws CompilerException {
+                    ClassGenerator fileGenerator = new ClassGenerator(options);
+                    long start = System.nanoTime();
+                    CharStream source;
+                    try {
+                        ByteBuffer bytes = contents.remove(file);
+                        source = decodeSource(bytes != null ? bytes : readBytes(sources.get(file)));
+                    } catch (IOException ex) {
+                        throw new CompilerException("Could not read " + file + ".", ex);
+                    }
+                    long read = CompilerStats.record(options, CompilerStats.READ, start, 1);
+                    parse(source, fileGenerator);
+                    long parsed = CompilerStats.record(options, CompilerStats.PARSE, read, 1);
+                    CompilerEvents.parsed(file, source.size(), read - start, parsed - read);
+                    fileGenerator.buildSignatures();
+                    int classes = fileGenerator.classesToCompile.size();
+                    long built = CompilerStats.record(options, CompilerStats.SIGNATURES, parsed, classes);
+                    CompilerEvents.signaturesBuilt(file, classes, built - parsed);
+                    return fileGenerator;
+                }
+            });
+        }
+        Map<String, List<String>> fileClasses = new LinkedHashMap<String, List<String>>();
+        List<ClassGenerator> fileGenerators = run(tasks.values(), pool);
+        int i = 0;
+        for (String file : tasks.keySet()) {
+            ClassGenerator fileGenerator = fileGenerators.get(i++);
+            List<String> classNames = new ArrayList<String>(fileGenerator.classesToCompile.keySet());
+            Collections.sort(classNames);
+            fileClasses.put(file, classNames);
+            generator.classesToCompile.putAll(fileGenerator.classesToCompile);
+            generator.methodSigCache.putAll(fileGenerator.methodSigCache);
+        }
+        return fileClasses;
+    }
+
+    // The parse trees are moved out of the generator and dropped as soon as no class that is
+    // still to be generated can look at them: once their own class is generated, and every class
+    // that calls into it, directly or through what it inlines or evaluates at compile time.
+    private static List<GeneratedClass> generateClasses(final ClassGenerator generator, Collection<String> classNames,
+                                                        final boolean hashSources, ForkJoinPool pool)
+        throws CompilerException {
+        Map<String, Map<String, Class[]>> signatures = new HashMap<String, Map<String, Class[]>>();
+        for (Map.Entry<String, Map<String, Class[]>> entry : generator.methodSigCache.entrySet())
+            signatures.put(entry.getKey(), Collections.unmodifiableMap(entry.getValue()));
+        final Map<String, Map<String, Class[]>> globalSignatures = Collections.unmodifiableMap(signatures);
+        final Map<String, Set<String>> trees = new HashMap<String, Set<String>>();
+        final Map<String, AtomicInteger> users = new HashMap<String, AtomicInteger>();
+        Map<String, Set<String>> calleeClasses = new HashMap<String, Set<String>>();
+        for (String className : classNames) {
+            Set<String> used = generator.reachableClasses(className, calleeClasses);
+            trees.put(className, used);
+            for (String usedClass : used) {
+                if (!users.containsKey(usedClass))
+                    users.put(usedClass, new AtomicInteger());
+                users.get(usedClass).incrementAndGet();
+            }
+        }
+        final Map<String, ClarkeParser.ClassDefinitionContext> classes = new ConcurrentHashMap<String, ClarkeParser.ClassDefinitionContext>();
+        for (String className : users.keySet())
+            classes.put(className, generator.classesToCompile.get(className));
+        generator.classesToCompile.clear();
+        List<Callable<GeneratedClass>> tasks = new ArrayList<Callable<GeneratedClass>>();
+        for (final String className : classNames) {
+            tasks.add(new Callable<GeneratedClass>() {
+                @Override public GeneratedClass call() throws CompilerException {
+                    ClassGenerator classGenerator = new ClassGenerator(generator.options, globalSignatures, classes);
+                    long start = System.nanoTime();
+                    JiteClass jiteClass = classGenerator.generateClass(className);
+                    long generatedAt = CompilerStats.record(generator.options, CompilerStats.GENERATE, start, 1);
+                    byte[] bytes = jiteClass.toBytes();
+                    long bytecodeAt = CompilerStats.record(generator.options, CompilerStats.BYTECODE, generatedAt, 1);
+                    CompilerEvents.classGenerated(className, bytes.length, generatedAt - start, bytecodeAt - generatedAt);
+                    GeneratedClass generated = new GeneratedClass(className, bytes, hashSources ? sourceHash(classes, className) : null,
+                            classGenerator.classDependencies.get(className), classGenerator.bodyDependencies.get(className));
+                    for (String usedClass : trees.get(className))
+                        if (users.get(usedClass).decrementAndGet() == 0)
+                            classes.remove(usedClass);
+                    return generated;
+                }
+            });
+        }
+        return run(tasks, pool);
+    }
+
+    private static <T> List<T> run(Collection<Callable<T>> tasks, ForkJoinPool pool)
+        throws CompilerException {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            if (pool == null) {
+                for (Callable<T> task : tasks)
+                    results.add(task.call());
+            } else {
+                for (Future<T> future : pool.invokeAll(tasks))
+                    results.add(future.get());
+            }
+        } catch (CompilerException ex) {
+            throw ex;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof CompilerException)
+                throw (CompilerException) ex.getCause();
+            throw new CompilerException(ex.getCause());
+        } catch (Exception ex) {
+            throw new CompilerException(ex);
+        }
+        return results;
+    }
+
+    private static class GeneratedClass {
+        final String name;
+        final byte[] bytes;
+        final String sourceHash;
+        final Set<String> dependencies;
+        final Set<String> bodyDependencies;
+
+        GeneratedClass(String name, byte[] bytes, String sourceHash, Set<String> dependencies, Set<String> bodyDependencies) {
+            this.name = name;
+            this.bytes = bytes;
+            this.sourceHash = sourceHash;
+            this.dependencies = dependencies;
+            this.bodyDependencies = bodyDependencies;
+        }
+    }
+
+    private static String sourceHash(Map<String, ClarkeParser.ClassDefinitionContext> classes, String className) {
+        ParserRuleContext ctx = classes.get(className);
+        return ClassCache.hash(ctx.start.getInputStream().getText(
+                Interval.of(ctx.start.getStartIndex(), ctx.stop.getStopIndex())));
+    }
+
+    private static boolean definesGenericMethods(ClassGenerator generator, List<String> classNames) {
+        for (String className : classNames)
+            for (Class[] signature : generator.methodSigCache.get(className).values())
+                if (ClassGenerator.isGeneric(signature))
+                    return true;
+        return false;
+    }
+
+    private static boolean dependenciesUnchanged(Map<String, String> dependencies, Map<String, String> signatureHashes) {
+        for (Map.Entry<String, String> dependency : dependencies.entrySet())
+            if (!dependency.getValue().equals(String.valueOf(signatureHashes.get(dependency.getKey()))))
+                return false;
+        return true;
+    }
+
+    // read into the heap and closed right away: a mapping would keep the file locked on Windows
+    // until it is garbage collected, while an editor is trying to save it
+    private static ByteBuffer readBytes(Path path)
+        throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(path));
+    }
+
+    // decoded straight into the array the lexer reads from
+    private static CharStream decodeSource(ByteBuffer bytes) {
+        CharBuffer chars = Charset.defaultCharset().decode(bytes);
+        return new ANTLRInputStream(chars.array(), chars.remaining());
+    }
+
+    static void writeClassFiles(Path directory, Map<String, byte[]> classes)
+        throws IOException {
+        for (Map.Entry<String, byte[]> entry : classes.entrySet())
+            Files.write(directory.resolve(entry.getKey() + ".class"), entry.getValue());
+    }
+
+    // All classes go into one jar through a single buffered stream. If exactly one of them has
+    // a main method, the manifest names it as the Main-Class, so the jar runs with java -jar;
+    // returns that class, or null.
+    static String writeJar(Path jar, Map<String, byte[]> classes)
+        throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        String mainClass = mainClass(classes);
+        if (mainClass != null)
+            manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
+        JarOutputStream out = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(jar)), manifest);
+        try {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                byte[] bytes = entry.getValue();
+                JarEntry jarEntry = new JarEntry(entry.getKey().replace('.', '/') + ".class");
+                jarEntry.setMethod(JarEntry.STORED);
+                jarEntry.setSize(bytes.length);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                jarEntry.setCrc(crc.getValue());
+                out.putNextEntry(jarEntry);
+                out.write(bytes);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return mainClass;
+    }
+
+    private static String mainClass(Map<String, byte[]> classes) {
+        String mainClass = null;
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            if (hasMainMethod(entry.getValue())) {
+                if (mainClass != null)
+                    return null;
+                mainClass = entry.getKey();
+            }
+        }
+        return mainClass;
+    }
+
+    private static boolean hasMainMethod(byte[] classBytes) {
+        final boolean[] found = new boolean[1];
+        new ClassReader(classBytes).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                if (name.equals("main") && desc.equals(sig(void.class, String[].class))
+                        && (access & Opcodes.ACC_PUBLIC) != 0 && (access & Opcodes.ACC_STATIC) != 0)
+                    found[0] = true;
+                return null;
+            }
+        }, ClassReader.SKIP_CODE);
+        return found[0];
+    }
+
     public static void main(String[] args) {
         try {
-            for (String path : args) {
-                for (JiteClass jiteClass : compileClasses(StringUtils.join(Files.readAllLines(Paths.get(path), Charset.defaultCharset()), '\n'))) {
-                    Files.write(Paths.get(jiteClass.getClassName() + ".class"), jiteClass.toBytes());
-                }
+            CompilerOptions options = CompilerOptions.parse(args);
+            if (options.repl) {
+                new Repl(options).run(System.in, System.out);
+            } else if (options.connectPort > 0) {
+                if (!CompilerDaemon.send(options.connectPort, Paths.get("").toAbsolutePath(), args))
+                    System.exit(1);
+            } else if (options.daemonPort > 0 || !options.watchDirectories.isEmpty()) {
+                new CompilerDaemon(options, Paths.get("")).run();
+            } else {
+                build(options, Paths.get(""));
+                if (options.stats != null)
+                    System.out.print(options.stats.report());
             }
         } catch (Exception ex) {
             ex.printStackTrace();
         }
     }
 
+    // One run of the compiler as on the command line, with class files written to directory.
+    // Returns how many classes were compiled, not counting those taken from the cache.
+    static int build(CompilerOptions options, Path directory)
+        throws CompilerException, IOException {
+        BuildCache cache = null;
+        if (options.cacheDirectory != null)
+            cache = BuildCache.open(options.cacheDirectory);
+        if (options.indexFile != null)
+            SymbolIndex.shared().load(options.indexFile);
+        ForkJoinPool pool = null;
+        if (options.threads > 0)
+            pool = new ForkJoinPool(options.threads);
+        long reflections = SymbolIndex.shared().reflections();
+        long reflectionNanos = SymbolIndex.shared().reflectionNanos();
+        Map<String, byte[]> classes;
+        try {
+            classes = compileFiles(options.sourcePaths, options, cache, pool);
+        } finally {
+            if (pool != null)
+                pool.shutdown();
+        }
+        if (options.stats != null)
+            options.stats.add(CompilerStats.REFLECTION, SymbolIndex.shared().reflectionNanos() - reflectionNanos,
+                    SymbolIndex.shared().reflections() - reflections);
+        int compiled = classes.size();
+        long start = System.nanoTime();
+        if (options.indexFile != null)
+            SymbolIndex.shared().save(options.indexFile);
+        if (options.jarFile != null) {
+            // the jar is written from scratch, so it needs the classes that were not compiled again as well
+            if (cache != null)
+                for (String className : cache.classNames())
+                    if (!classes.containsKey(c(className)))
+                        classes.put(c(className), cache.classBytes(className));
+            String mainClass = writeJar(options.jarFile, classes);
+            CompilerStats.record(options, CompilerStats.WRITE, start, classes.size());
+            if (options.cds) {
+                if (mainClass == null)
+                    throw new CompilerException("Option --cds needs exactly one class with a main method.");
+                CdsArchive.create(options.jarFile, mainClass);
+            }
+        } else {
+            writeClassFiles(directory, classes);
+            if (cache != null) {
+                for (String className : cache.classNames()) {
+                    Path output = directory.resolve(className + ".class");
+                    if (!Files.exists(output))
+                        Files.write(output, cache.classBytes(className));
+                }
+            }
+            CompilerStats.record(options, CompilerStats.WRITE, start, classes.size());
+        }
+        return compiled;
+    }
+
 }
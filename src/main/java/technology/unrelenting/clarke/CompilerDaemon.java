@@ -0,0 +1,263 @@
+package technology.unrelenting.clarke;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// Keeps one compiler running, so a build doesn't pay for starting a JVM, loading the parser
+// and running cold code first. With --daemon PORT it takes builds from --connect PORT over a
+// socket on the loopback interface; with --watch DIR it compiles the .clarke files in DIR
+// and its subdirectories again whenever one of them is saved. Watched builds always use a
+// build cache, so only classes whose source or callees changed are compiled again.
+//
+// A request is the client's working directory and its arguments, one per line, ended by an
+// empty line. The answer is whatever the build has to say, ended by a line OK or FAILED.
+// Syntax errors are still reported on the standard error of the daemon.
+public class CompilerDaemon {
+
+    static final String OK = "OK";
+    static final String FAILED = "FAILED";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // editors save in several steps, so a build waits until the directory was quiet this long
+    private static final long QUIET_MILLISECONDS = 50;
+
+    private final CompilerOptions options;
+    private final Path directory;
+
+    // options are the daemon's own, for the watched directories; directory is where their class files go
+    public CompilerDaemon(CompilerOptions options, Path directory) {
+        this.options = options;
+        this.directory = directory;
+    }
+
+    public void run()
+        throws CompilerException, IOException, InterruptedException {
+        Thread watcher = null;
+        if (!options.watchDirectories.isEmpty()) {
+            watcher = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        watch();
+                    } catch (InterruptedException ex) {
+                        // stopped
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            }, "clarke-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        if (options.daemonPort > 0)
+            serve(listen(options.daemonPort));
+        else
+            watcher.join();
+    }
+
+    public static ServerSocket listen(int port)
+        throws IOException {
+        return new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    // Answers requests one after the other until the socket is closed.
+    public void serve(ServerSocket server)
+        throws IOException {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                try {
+                    answer(socket);
+                } catch (IOException ex) {
+                    // the client went away
+                } finally {
+                    socket.close();
+                }
+            }
+        } catch (SocketException ex) {
+            if (!server.isClosed())
+                throw ex;
+        }
+    }
+
+    private void answer(Socket socket)
+        throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), UTF8));
+        String firstLine = in.readLine();
+        if (firstLine == null)
+            return; // connected and went away without asking for anything
+        Path workingDirectory = Paths.get(firstLine);
+        List<String> args = new ArrayList<String>();
+        for (String line; (line = in.readLine()) != null && !line.isEmpty(); )
+            args.add(line);
+        try {
+            CompilerOptions request = CompilerOptions.parse(args.toArray(new String[args.size()]));
+            request.resolveAgainst(workingDirectory);
+            long start = System.nanoTime();
+            int compiled = build(request, workingDirectory);
+            out.println("Compiled " + compiled + " classes in " + milliseconds(start) + " ms.");
+            if (request.stats != null)
+                out.print(request.stats.report());
+            out.println(OK);
+        } catch (CompilerException ex) {
+            out.println(ex.getMessage());
+            out.println(FAILED);
+        } catch (IOException ex) {
+            // the build failed to read or write a file, the client is still there
+            out.println(ex.toString());
+            out.println(FAILED);
+        } catch (RuntimeException ex) {
+            out.println(ex.toString());
+            out.println(FAILED);
+        }
+        out.flush();
+    }
+
+    // Sends a build to the daemon on port and prints its answer. Returns whether the build worked.
+    public static boolean send(int port, Path workingDirectory, String[] args)
+        throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), UTF8);
+            out.write(workingDirectory.toAbsolutePath() + "\n");
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--connect"))
+                    i++;
+                else
+                    out.write(args[i] + "\n");
+            }
+            out.write("\n");
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+            for (String line; (line = in.readLine()) != null; ) {
+                if (line.equals(OK) || line.equals(FAILED))
+                    return line.equals(OK);
+                System.out.println(line);
+            }
+            return false;
+        } finally {
+            socket.close();
+        }
+    }
+
+    // Builds the watched directories once, then again after every change to a .clarke file in them.
+    public void watch()
+        throws CompilerException, IOException, InterruptedException {
+        if (options.cacheDirectory == null)
+            options.cacheDirectory = Files.createTempDirectory("clarke-daemon");
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        try {
+            for (Path watched : options.watchDirectories)
+                register(watchService, watched);
+            buildWatched();
+            while (true) {
+                boolean changed = changed(watchService, watchService.take());
+                for (WatchKey key; (key = watchService.poll(QUIET_MILLISECONDS, TimeUnit.MILLISECONDS)) != null; )
+                    changed |= changed(watchService, key);
+                if (changed)
+                    buildWatched();
+            }
+        } finally {
+            watchService.close();
+        }
+    }
+
+    // new directories are watched as well
+    private boolean changed(WatchService watchService, WatchKey key)
+        throws IOException {
+        boolean changed = false;
+        Path watched = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                changed = true;
+                continue;
+            }
+            Path path = watched.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                register(watchService, path);
+                changed = true;
+            } else if (isSource(path)) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void register(final WatchService watchService, Path start)
+        throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes)
+                throws IOException {
+                dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Failed builds are reported and the watcher keeps going: files can disappear while they are
+    // listed or read, for example when an editor saves by deleting and renaming, and the next
+    // change will build again.
+    private void buildWatched() {
+        final List<Path> sources = new ArrayList<Path>();
+        long start = System.nanoTime();
+        try {
+            for (Path watched : options.watchDirectories) {
+                Files.walkFileTree(watched, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        if (isSource(file))
+                            sources.add(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+            Collections.sort(sources);
+            options.sourcePaths.clear();
+            options.sourcePaths.addAll(sources);
+            if (options.stats != null)
+                options.stats = new CompilerStats();
+            int compiled = build(options, directory);
+            System.out.println("Compiled " + compiled + " classes from " + sources.size() + " files in " + milliseconds(start) + " ms.");
+            if (options.stats != null)
+                System.out.print(options.stats.report());
+        } catch (CompilerException ex) {
+            System.out.println(ex.getMessage());
+        } catch (IOException ex) {
+            System.out.println(ex.toString());
+        }
+    }
+
+    // one build at a time, because builds can share a cache, an index and output files
+    private synchronized int build(CompilerOptions options, Path directory)
+        throws CompilerException, IOException {
+        return Compiler.build(options, directory);
+    }
+
+    private static boolean isSource(Path path) {
+        return path.getFileName().toString().endsWith(".clarke");
+    }
+
+    private static long milliseconds(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+}
@@ -0,0 +1,173 @@
+package technology.unrelenting.clarke;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Flight Recorder events for the phases of the compiler, in the category Clarke. Record them
+// with java -XX:StartFlightRecording=filename=build.jfr -jar clarke-all.jar ... and open the
+// file in JDK Mission Control or print it with jfr print --categories Clarke build.jfr.
+// The compiler measures every step itself, for --stats, and reports it here afterwards, so the
+// events carry the time in a duration field. The first event class to be loaded starts up Flight
+// Recorder, which takes longer than compiling a small program, so nothing is created until a
+// recording has started it; on a JVM without Flight Recorder nothing here is loaded.
+final class CompilerEvents {
+
+    private static final boolean AVAILABLE = available();
+
+    private CompilerEvents() {
+    }
+
+    static void parsed(String file, int characters, long readNanos, long parseNanos) {
+        if (AVAILABLE && Events.recording())
+            Events.parsed(file, characters, readNanos, parseNanos);
+    }
+
+    static void signaturesBuilt(String source, int classes, long nanos) {
+        if (AVAILABLE && Events.recording())
+            Events.signaturesBuilt(source, classes, nanos);
+    }
+
+    static void methodCompiled(String className, String methodName, int instructions, long nanos) {
+        if (AVAILABLE && Events.recording())
+            Events.methodCompiled(className, methodName, instructions, nanos);
+    }
+
+    static void classGenerated(String className, int bytes, long generateNanos, long bytecodeNanos) {
+        if (AVAILABLE && Events.recording())
+            Events.classGenerated(className, bytes, generateNanos, bytecodeNanos);
+    }
+
+    static void reflected(String className, String members, long nanos) {
+        if (AVAILABLE && Events.recording())
+            Events.reflected(className, members, nanos);
+    }
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    // everything that mentions jdk.jfr, so that it is only loaded when Flight Recorder is there
+    private static final class Events {
+
+        static boolean recording() {
+            return FlightRecorder.isInitialized();
+        }
+
+        static void parsed(String file, int characters, long readNanos, long parseNanos) {
+            ParseEvent event = new ParseEvent();
+            if (event.isEnabled()) {
+                event.file = file;
+                event.characters = characters;
+                event.read = readNanos;
+                event.parse = parseNanos;
+                event.commit();
+            }
+        }
+
+        static void signaturesBuilt(String source, int classes, long nanos) {
+            SignaturesEvent event = new SignaturesEvent();
+            if (event.isEnabled()) {
+                event.source = source;
+                event.classes = classes;
+                event.time = nanos;
+                event.commit();
+            }
+        }
+
+        static void methodCompiled(String className, String methodName, int instructions, long nanos) {
+            MethodEvent event = new MethodEvent();
+            if (event.isEnabled()) {
+                event.className = className;
+                event.methodName = methodName;
+                event.instructions = instructions;
+                event.time = nanos;
+                event.commit();
+            }
+        }
+
+        static void classGenerated(String className, int bytes, long generateNanos, long bytecodeNanos) {
+            ClassEvent event = new ClassEvent();
+            if (event.isEnabled()) {
+                event.className = className;
+                event.bytes = bytes;
+                event.generate = generateNanos;
+                event.bytecode = bytecodeNanos;
+                event.commit();
+            }
+        }
+
+        static void reflected(String className, String members, long nanos) {
+            ReflectionEvent event = new ReflectionEvent();
+            if (event.isEnabled()) {
+                event.className = className;
+                event.members = members;
+                event.time = nanos;
+                event.commit();
+            }
+        }
+    }
+
+    @Name("technology.unrelenting.clarke.Parse")
+    @Label("Parse")
+    @Category("Clarke")
+    @StackTrace(false)
+    static class ParseEvent extends Event {
+        @Label("File") String file;
+        @Label("Characters") int characters;
+        @Label("Read") @Timespan long read;
+        @Label("Parse") @Timespan long parse;
+    }
+
+    @Name("technology.unrelenting.clarke.Signatures")
+    @Label("Signatures")
+    @Category("Clarke")
+    @StackTrace(false)
+    static class SignaturesEvent extends Event {
+        @Label("Source") String source;
+        @Label("Classes") int classes;
+        @Label("Time") @Timespan long time;
+    }
+
+    @Name("technology.unrelenting.clarke.Method")
+    @Label("Method")
+    @Category("Clarke")
+    @StackTrace(false)
+    static class MethodEvent extends Event {
+        @Label("Class") String className;
+        @Label("Method") String methodName;
+        @Label("Instructions") int instructions;
+        @Label("Time") @Timespan long time;
+    }
+
+    @Name("technology.unrelenting.clarke.Class")
+    @Label("Class")
+    @Category("Clarke")
+    @StackTrace(false)
+    static class ClassEvent extends Event {
+        @Label("Class") String className;
+        @Label("Bytecode Size") int bytes;
+        @Label("Generate") @Timespan long generate;
+        @Label("Bytecode") @Timespan long bytecode;
+    }
+
+    @Name("technology.unrelenting.clarke.Reflection")
+    @Label("Reflection")
+    @Category("Clarke")
+    @StackTrace(false)
+    static class ReflectionEvent extends Event {
+        @Label("Class") String className;
+        @Label("Members") String members;
+        @Label("Time") @Timespan long time;
+    }
+
+}
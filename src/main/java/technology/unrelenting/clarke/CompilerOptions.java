@@ -0,0 +1,123 @@
+package technology.unrelenting.clarke;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompilerOptions {
+
+    public final List<Path> sourcePaths = new ArrayList<Path>();
+    public Path cacheDirectory;
+    public Path indexFile;
+    public Path jarFile;
+    public boolean cds;
+    public int threads;
+    public int optimizationLevel = 1;
+    public int evaluationBudget = 100000;
+    public int inlineLimit = 16;
+    public int target = 8;
+    public boolean bufferedOutput;
+    public boolean profile;
+    // collects phase times when set, see --stats
+    public CompilerStats stats;
+    public int daemonPort;
+    public int connectPort;
+    public final List<Path> watchDirectories = new ArrayList<Path>();
+    public boolean repl;
+
+    public static CompilerOptions parse(String[] args)
+        throws CompilerException {
+        CompilerOptions options = new CompilerOptions();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--cache"))
+                options.cacheDirectory = Paths.get(argument(args, ++i, arg));
+            else if (arg.equals("--index"))
+                options.indexFile = Paths.get(argument(args, ++i, arg));
+            else if (arg.equals("--jar"))
+                options.jarFile = Paths.get(argument(args, ++i, arg));
+            else if (arg.equals("--cds"))
+                options.cds = true;
+            else if (arg.equals("--parallel"))
+                options.threads = Runtime.getRuntime().availableProcessors();
+            else if (arg.equals("--threads"))
+                options.threads = intArgument(args, ++i, arg);
+            else if (arg.equals("-O"))
+                options.optimizationLevel = 2;
+            else if (arg.matches("-O[0-9]"))
+                options.optimizationLevel = arg.charAt(2) - '0';
+            else if (arg.equals("--eval-budget"))
+                options.evaluationBudget = intArgument(args, ++i, arg);
+            else if (arg.equals("--inline-limit"))
+                options.inlineLimit = intArgument(args, ++i, arg);
+            else if (arg.equals("--target"))
+                options.target = intArgument(args, ++i, arg);
+            else if (arg.equals("--buffered-output"))
+                options.bufferedOutput = true;
+            else if (arg.equals("--profile"))
+                options.profile = true;
+            else if (arg.equals("--stats"))
+                options.stats = new CompilerStats();
+            else if (arg.equals("--daemon"))
+                options.daemonPort = intArgument(args, ++i, arg);
+            else if (arg.equals("--connect"))
+                options.connectPort = intArgument(args, ++i, arg);
+            else if (arg.equals("--watch"))
+                options.watchDirectories.add(Paths.get(argument(args, ++i, arg)));
+            else if (arg.equals("--repl"))
+                options.repl = true;
+            else if (arg.startsWith("-"))
+                throw new CompilerException("Unknown option " + arg);
+            else
+                options.sourcePaths.add(Paths.get(arg));
+        }
+        if (options.target < 6)
+            throw new CompilerException("Option --target must be 6 or later.");
+        if (options.profile && options.target < 7)
+            throw new CompilerException("Option --profile needs --target 7 or later.");
+        if (options.cds && options.jarFile == null)
+            throw new CompilerException("Option --cds needs --jar.");
+        if (options.connectPort > 0 && (options.daemonPort > 0 || !options.watchDirectories.isEmpty()))
+            throw new CompilerException("Option --connect can't be used with --daemon or --watch.");
+        return options;
+    }
+
+    // Makes the paths in these options absolute, for a build that runs in another directory.
+    public void resolveAgainst(Path directory) {
+        for (int i = 0; i < sourcePaths.size(); i++)
+            sourcePaths.set(i, directory.resolve(sourcePaths.get(i)));
+        for (int i = 0; i < watchDirectories.size(); i++)
+            watchDirectories.set(i, directory.resolve(watchDirectories.get(i)));
+        if (cacheDirectory != null)
+            cacheDirectory = directory.resolve(cacheDirectory);
+        if (indexFile != null)
+            indexFile = directory.resolve(indexFile);
+        if (jarFile != null)
+            jarFile = directory.resolve(jarFile);
+    }
+
+    // Everything that affects the generated bytecode, so cached classes built
+    // with different settings are not reused.
+    public String fingerprint() {
+        return "O" + optimizationLevel + " eval" + evaluationBudget + " inline" + inlineLimit + " target" + target
+                + (bufferedOutput ? " buffered" : "") + (profile ? " profile" : "");
+    }
+
+    private static String argument(String[] args, int i, String option)
+        throws CompilerException {
+        if (i >= args.length)
+            throw new CompilerException("Option " + option + " requires an argument.");
+        return args[i];
+    }
+
+    private static int intArgument(String[] args, int i, String option)
+        throws CompilerException {
+        try {
+            return Integer.parseInt(argument(args, i, option));
+        } catch (NumberFormatException ex) {
+            throw new CompilerException("Option " + option + " requires a number.", ex);
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package technology.unrelenting.clarke;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Where a build spends its time, by phase (--stats). Reading and parsing are per file, the
+// signature pass per file or program, generating and writing bytecode per class; reflection
+// on Java classes happens during the signature pass and generation and is counted in those
+// as well. With --parallel the phases add up the time of every thread, so together they can
+// take longer than the build. Per class and per method numbers are in the JFR events, see
+// CompilerEvents.
+public class CompilerStats {
+
+    public static final int READ = 0;
+    public static final int PARSE = 1;
+    public static final int SIGNATURES = 2;
+    public static final int GENERATE = 3;
+    public static final int BYTECODE = 4;
+    public static final int WRITE = 5;
+    public static final int REFLECTION = 6;
+
+    private static final String[] PHASE_NAMES = { "read", "parse", "signatures", "generate", "bytecode", "write", "reflection" };
+    private static final String[] COUNTED = { "files", "files", "classes", "classes", "classes", "classes", "lookups" };
+
+    private final AtomicLongArray nanos = new AtomicLongArray(PHASE_NAMES.length);
+    private final AtomicLongArray counts = new AtomicLongArray(PHASE_NAMES.length);
+    private final long start = System.nanoTime();
+
+    public void add(int phase, long phaseNanos, long count) {
+        nanos.addAndGet(phase, phaseNanos);
+        counts.addAndGet(phase, count);
+    }
+
+    public long nanos(int phase) {
+        return nanos.get(phase);
+    }
+
+    public long count(int phase) {
+        return counts.get(phase);
+    }
+
+    // Adds the time since start and count to phase when options collect stats, and returns the current time.
+    static long record(CompilerOptions options, int phase, long start, long count) {
+        long now = System.nanoTime();
+        if (options.stats != null)
+            options.stats.add(phase, now - start, count);
+        return now;
+    }
+
+    public String report() {
+        long total = System.nanoTime() - start;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-12s %10s %7s %10s\n", "phase", "ms", "share", "count"));
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            report.append(String.format("%-12s %10.1f %6.1f%% %10d %s\n", PHASE_NAMES[phase], nanos(phase) / 1e6,
+                    100.0 * nanos(phase) / total, count(phase), COUNTED[phase]));
+        }
+        report.append(String.format("%-12s %10.1f\n", "total", total / 1e6));
+        return report.toString();
+    }
+
+}
@@ -0,0 +1,259 @@
+package technology.unrelenting.clarke;
+
+import java.util.*;
+
+// Runs calls to pure Clarke methods at compile time. A method is pure when it only uses
+// literals, stack and arithmetic operations, conditionals, loops (except over arrays) and calls
+// to other pure Clarke methods. Every evaluated expression costs one step of the budget, so loops
+// that don't terminate (or just take too long) fall back to a normal call.
+public class ConstantEvaluator {
+
+    private static class GiveUp extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        GiveUp() {
+            super(null, null, false, false);
+        }
+    }
+
+    public static final Object VOID = new Object();
+    private static final int MAX_DEPTH = 256;
+
+    private final ClassGenerator generator;
+    private final Map<String, Boolean> purity;
+    private final Set<String> touchedClasses = new HashSet<String>();
+    private int budget;
+    private int depth;
+
+    public ConstantEvaluator(ClassGenerator generator, Map<String, Boolean> purity, int budget) {
+        this.generator = generator;
+        this.purity = purity;
+        this.budget = budget;
+    }
+
+    public Set<String> getTouchedClasses() {
+        return touchedClasses;
+    }
+
+    static String calleeClassName(ClarkeParser.QualifiedNameContext qualifiedName, String lexicalClassName) {
+        if (qualifiedName.memberName().isEmpty())
+            return lexicalClassName;
+        String name = qualifiedName.getText();
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    static String calleeMethodName(ClarkeParser.QualifiedNameContext qualifiedName) {
+        List<ClarkeParser.MemberNameContext> members = qualifiedName.memberName();
+        if (members.isEmpty())
+            return qualifiedName.ID().getText();
+        return members.get(members.size() - 1).getText();
+    }
+
+    public boolean isPure(String className, String methodName) {
+        String key = className + "." + methodName;
+        Boolean known = purity.get(key);
+        if (known != null)
+            return known;
+        ClarkeParser.MethodDefinitionContext methodCtx = generator.findMethod(className, methodName);
+        if (methodCtx == null)
+            return false;
+        purity.put(key, true); // recursive calls don't make a method impure
+        boolean pure = arePure(methodCtx.expr(), className);
+        purity.put(key, pure);
+        return pure;
+    }
+
+    private boolean arePure(List<ClarkeParser.ExprContext> exprs, String lexicalClassName) {
+        for (ClarkeParser.ExprContext expr : exprs) {
+            if (expr.primitiveOperation() != null) {
+                int op = expr.primitiveOperation().getStart().getType();
+                // output has side effects; arrays can't be constants, and what is in them can change
+                if (op == ClarkeLexer.Print || op == ClarkeLexer.Println || op == ClarkeLexer.Flush
+                        || op == ClarkeLexer.At || op == ClarkeLexer.Store || op == ClarkeLexer.Length)
+                    return false;
+            } else if (expr.newArray() != null || expr.loopExpr() != null && isArrayLoop(expr.loopExpr())
+                    || expr.instanceCall() != null) {
+                return false;
+            } else if (expr.controlFlowExpr() != null || expr.loopExpr() != null) {
+                for (ClarkeParser.GroupExprContext group : ClassGenerator.groups(expr))
+                    if (!arePure(group.expr(), lexicalClassName))
+                        return false;
+            } else if (expr.qualifiedName() != null) {
+                ClarkeParser.QualifiedNameContext name = expr.qualifiedName();
+                if (!isPure(calleeClassName(name, lexicalClassName), calleeMethodName(name)))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isArrayLoop(ClarkeParser.LoopExprContext ctx) {
+        return ctx.mapExpr() != null || ctx.foldExpr() != null || ctx.eachExpr() != null;
+    }
+
+    // Returns the result of the call, VOID for methods without one, or null if it can't be evaluated.
+    public Object evaluate(String className, String methodName, List<Object> args) {
+        try {
+            return call(className, methodName, args);
+        } catch (GiveUp ex) {
+            return null;
+        }
+    }
+
+    private Object call(String className, String methodName, List<Object> args)
+        throws GiveUp {
+        ClarkeParser.MethodDefinitionContext methodCtx = generator.findMethod(className, methodName);
+        Map<String, Class[]> methodsOfClass = generator.methodSigCache.get(className);
+        if (methodCtx == null || methodsOfClass == null || !methodsOfClass.containsKey(methodName))
+            throw new GiveUp();
+        Class[] signature = methodsOfClass.get(methodName);
+        if (args.size() != signature.length - 1)
+            throw new GiveUp();
+        if (ClassGenerator.isGeneric(signature))
+            signature = specialize(className, methodName, args);
+        for (int i = 0; i < args.size(); i++)
+            if (ConstantFolder.typeOf(args.get(i)) != signature[i + 1])
+                throw new GiveUp();
+        if (++depth > MAX_DEPTH)
+            throw new GiveUp();
+        touchedClasses.add(className);
+        ArrayList<Object> stack = new ArrayList<Object>(args);
+        run(methodCtx.expr(), stack, className, new ArrayList<Object>());
+        depth--;
+        if (signature[0] == void.class)
+            return VOID;
+        Object result = pop(stack);
+        if (ConstantFolder.typeOf(result) != signature[0])
+            throw new GiveUp();
+        return result;
+    }
+
+    private Class[] specialize(String className, String methodName, List<Object> args)
+        throws GiveUp {
+        Class[] types = new Class[args.size()];
+        for (int i = 0; i < types.length; i++)
+            types[i] = ConstantFolder.typeOf(args.get(i));
+        try {
+            Class[] signature = generator.specialize(className, methodName, types);
+            if (signature == null)
+                throw new GiveUp();
+            return signature;
+        } catch (CompilerException ex) {
+            throw new GiveUp();
+        }
+    }
+
+    private static Object pop(ArrayList<Object> stack)
+        throws GiveUp {
+        if (stack.isEmpty())
+            throw new GiveUp();
+        return stack.remove(stack.size() - 1);
+    }
+
+    private static boolean popCondition(ArrayList<Object> stack)
+        throws GiveUp {
+        Object condition = pop(stack);
+        if (!(condition instanceof Boolean))
+            throw new GiveUp();
+        return (Boolean) condition;
+    }
+
+    // indexes: the index of every loop the expressions are in, innermost last
+    private void run(List<ClarkeParser.ExprContext> exprs, ArrayList<Object> stack, String lexicalClassName,
+                     List<Object> indexes)
+        throws GiveUp {
+        for (ClarkeParser.ExprContext expr : exprs) {
+            if (--budget < 0)
+                throw new GiveUp();
+            if (expr.literal() != null) {
+                stack.add(ClassGenerator.literalValue(expr.literal()));
+            } else if (expr.primitiveOperation() != null) {
+                runPrimitiveOperation(expr.primitiveOperation().getStart().getType(), stack);
+            } else if (expr.controlFlowExpr() != null) {
+                ClarkeParser.ControlFlowExprContext ctx = expr.controlFlowExpr();
+                boolean condition = popCondition(stack);
+                if (ctx.ifExpr() != null)
+                    run(ctx.ifExpr().groupExpr(condition ? 1 : 0).expr(), stack, lexicalClassName, indexes);
+                else if (ctx.whenExpr() != null && condition)
+                    run(ctx.whenExpr().groupExpr().expr(), stack, lexicalClassName, indexes);
+                else if (ctx.unlessExpr() != null && !condition)
+                    run(ctx.unlessExpr().groupExpr().expr(), stack, lexicalClassName, indexes);
+            } else if (expr.loopExpr() != null && expr.loopExpr().whileExpr() != null) {
+                ClarkeParser.WhileExprContext ctx = expr.loopExpr().whileExpr();
+                while (true) {
+                    run(ctx.groupExpr(1).expr(), stack, lexicalClassName, indexes);
+                    if (!popCondition(stack))
+                        break;
+                    run(ctx.groupExpr(0).expr(), stack, lexicalClassName, indexes);
+                }
+            } else if (expr.loopExpr() != null && !isArrayLoop(expr.loopExpr())) {
+                Object limit = pop(stack);
+                Object from;
+                if (expr.loopExpr().timesExpr() != null)
+                    from = limit instanceof Long ? (Object) 0L : (Object) 0;
+                else
+                    from = pop(stack);
+                if (!(limit instanceof Integer || limit instanceof Long) || from.getClass() != limit.getClass())
+                    throw new GiveUp();
+                List<ClarkeParser.ExprContext> body = ClassGenerator.groups(expr).get(0).expr();
+                for (long i = ((Number) from).longValue(); i < ((Number) limit).longValue(); i++) {
+                    indexes.add(limit instanceof Long ? (Object) i : (Object) (int) i);
+                    run(body, stack, lexicalClassName, indexes);
+                    indexes.remove(indexes.size() - 1);
+                }
+            } else if (expr.loopIndex() != null) {
+                if (indexes.isEmpty())
+                    throw new GiveUp();
+                stack.add(indexes.get(indexes.size() - 1));
+            } else if (expr.qualifiedName() != null) {
+                ClarkeParser.QualifiedNameContext name = expr.qualifiedName();
+                String className = calleeClassName(name, lexicalClassName);
+                String methodName = calleeMethodName(name);
+                Map<String, Class[]> methodsOfClass = generator.methodSigCache.get(className);
+                if (methodsOfClass == null || !methodsOfClass.containsKey(methodName))
+                    throw new GiveUp();
+                int arity = methodsOfClass.get(methodName).length - 1;
+                if (stack.size() < arity)
+                    throw new GiveUp();
+                List<Object> args = new ArrayList<Object>(stack.subList(stack.size() - arity, stack.size()));
+                stack.subList(stack.size() - arity, stack.size()).clear();
+                Object result = call(className, methodName, args);
+                if (result != VOID)
+                    stack.add(result);
+            } else {
+                throw new GiveUp();
+            }
+        }
+    }
+
+    private static void runPrimitiveOperation(int op, ArrayList<Object> stack)
+        throws GiveUp {
+        StackShuffler.Shuffle shuffle = StackShuffler.forOperation(op);
+        if (op == ClarkeLexer.Pick) {
+            Object n = pop(stack);
+            if (!(n instanceof Integer) || (Integer) n < 0)
+                throw new GiveUp();
+            shuffle = StackShuffler.pick((Integer) n);
+        }
+        if (shuffle != null) {
+            if (stack.size() < shuffle.window)
+                throw new GiveUp();
+            List<Object> values = shuffle.apply(stack);
+            stack.subList(stack.size() - shuffle.window, stack.size()).clear();
+            stack.addAll(values);
+            return;
+        }
+        Object result;
+        if (op == ClarkeLexer.Not) {
+            result = ConstantFolder.not(pop(stack));
+        } else {
+            Object right = pop(stack);
+            Object left = pop(stack);
+            result = ConstantFolder.binary(op, left, right);
+        }
+        if (result == null)
+            throw new GiveUp();
+        stack.add(result);
+    }
+
+}
@@ -0,0 +1,167 @@
+package technology.unrelenting.clarke;
+
+import me.qmx.jitescript.CodeBlock;
+
+// Compile-time versions of the primitive operations, with exactly the semantics
+// of the bytecode that PrimitiveOperations would emit for them.
+// Every method returns null when the operation can't be folded.
+public class ConstantFolder {
+
+    public static Class typeOf(Object value) {
+        if (value instanceof Boolean)
+            return boolean.class;
+        if (value instanceof Integer)
+            return int.class;
+        if (value instanceof Long)
+            return long.class;
+        if (value instanceof Float)
+            return float.class;
+        if (value instanceof Double)
+            return double.class;
+        return value.getClass();
+    }
+
+    public static void push(CodeBlock block, Object value) {
+        if (value instanceof Boolean)
+            block.pushBoolean((Boolean) value);
+        else if (value instanceof Integer)
+            block.pushInt((Integer) value);
+        else
+            block.ldc(value);
+    }
+
+    // the operand type castNumericTypes would convert both operands to
+    private static Class promotedType(Object left, Object right) {
+        Class leftType = typeOf(left);
+        Class rightType = typeOf(right);
+        if (leftType == boolean.class || rightType == boolean.class)
+            return leftType == rightType ? boolean.class : null;
+        if (!PrimitiveOperations.isNumeric(leftType) || !PrimitiveOperations.isNumeric(rightType))
+            return null;
+        if (leftType == double.class || rightType == double.class)
+            return double.class;
+        if (leftType == float.class || rightType == float.class)
+            return float.class;
+        if (leftType == long.class || rightType == long.class)
+            return long.class;
+        return int.class;
+    }
+
+    public static Object numeric(int op, Object left, Object right) {
+        Class type = promotedType(left, right);
+        if (type == int.class) {
+            int l = (Integer) left, r = (Integer) right;
+            if (op == ClarkeLexer.Plus) return l + r;
+            if (op == ClarkeLexer.Minus) return l - r;
+            if (op == ClarkeLexer.Times) return l * r;
+            if (r == 0) return null; // leave the ArithmeticException to run time
+            if (op == ClarkeLexer.Divide) return l / r;
+            if (op == ClarkeLexer.Remainder) return l % r;
+        } else if (type == long.class) {
+            long l = ((Number) left).longValue(), r = ((Number) right).longValue();
+            if (op == ClarkeLexer.Plus) return l + r;
+            if (op == ClarkeLexer.Minus) return l - r;
+            if (op == ClarkeLexer.Times) return l * r;
+            if (r == 0) return null;
+            if (op == ClarkeLexer.Divide) return l / r;
+            if (op == ClarkeLexer.Remainder) return l % r;
+        } else if (type == float.class) {
+            float l = ((Number) left).floatValue(), r = ((Number) right).floatValue();
+            if (op == ClarkeLexer.Plus) return l + r;
+            if (op == ClarkeLexer.Minus) return l - r;
+            if (op == ClarkeLexer.Times) return l * r;
+            if (op == ClarkeLexer.Divide) return l / r;
+            if (op == ClarkeLexer.Remainder) return l % r;
+        } else if (type == double.class) {
+            double l = ((Number) left).doubleValue(), r = ((Number) right).doubleValue();
+            if (op == ClarkeLexer.Plus) return l + r;
+            if (op == ClarkeLexer.Minus) return l - r;
+            if (op == ClarkeLexer.Times) return l * r;
+            if (op == ClarkeLexer.Divide) return l / r;
+            if (op == ClarkeLexer.Remainder) return l % r;
+        }
+        return null;
+    }
+
+    public static Object compare(int op, Object left, Object right) {
+        Class type = promotedType(left, right);
+        int cmp;
+        if (type == boolean.class)
+            cmp = Boolean.compare((Boolean) left, (Boolean) right);
+        else if (type == int.class)
+            cmp = Integer.compare((Integer) left, (Integer) right);
+        else if (type == long.class)
+            cmp = Long.compare(((Number) left).longValue(), ((Number) right).longValue());
+        else if (type == float.class)
+            cmp = compareFloating(((Number) left).floatValue(), ((Number) right).floatValue());
+        else if (type == double.class)
+            cmp = compareFloating(((Number) left).doubleValue(), ((Number) right).doubleValue());
+        else
+            return null;
+        // every comparison with NaN is false except ≠, as in Java and in the compiled code
+        if (cmp == UNORDERED)
+            return op == ClarkeLexer.NotEqual;
+        if (op == ClarkeLexer.Equal)
+            return cmp == 0;
+        if (op == ClarkeLexer.NotEqual)
+            return cmp != 0;
+        if (op == ClarkeLexer.Less)
+            return cmp < 0;
+        if (op == ClarkeLexer.LessEqual)
+            return cmp <= 0;
+        if (op == ClarkeLexer.Greater)
+            return cmp > 0;
+        if (op == ClarkeLexer.GreaterEqual)
+            return cmp >= 0;
+        return null;
+    }
+
+    private static final int UNORDERED = Integer.MIN_VALUE;
+
+    // floats compare the same widened to double; UNORDERED if either is NaN
+    private static int compareFloating(double l, double r) {
+        if (Double.isNaN(l) || Double.isNaN(r))
+            return UNORDERED;
+        return l < r ? -1 : (l == r ? 0 : 1);
+    }
+
+    public static Object not(Object value) {
+        if (value instanceof Boolean)
+            return !(Boolean) value;
+        return null;
+    }
+
+    public static Object logic(int op, Object left, Object right) {
+        if (!(left instanceof Boolean) || !(right instanceof Boolean))
+            return null;
+        if (op == ClarkeLexer.And)
+            return (Boolean) left && (Boolean) right;
+        if (op == ClarkeLexer.Or)
+            return (Boolean) left || (Boolean) right;
+        return null;
+    }
+
+    public static Object binary(int op, Object left, Object right) {
+        switch (op) {
+            case ClarkeLexer.Plus:
+            case ClarkeLexer.Minus:
+            case ClarkeLexer.Times:
+            case ClarkeLexer.Divide:
+            case ClarkeLexer.Remainder:
+                return numeric(op, left, right);
+            case ClarkeLexer.And:
+            case ClarkeLexer.Or:
+                return logic(op, left, right);
+            case ClarkeLexer.Equal:
+            case ClarkeLexer.NotEqual:
+            case ClarkeLexer.Less:
+            case ClarkeLexer.Greater:
+            case ClarkeLexer.LessEqual:
+            case ClarkeLexer.GreaterEqual:
+                return compare(op, left, right);
+            default:
+                return null;
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package technology.unrelenting.clarke;
+
+import org.apache.commons.lang3.ClassUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Picks the overload of a Java method that javac would pick for arguments of the given types
+// (JLS 15.12.2): first among the overloads the arguments fit by subtyping and primitive
+// widening, then, if there are none, with boxing and unboxing as well, and of those the most
+// specific one. Varargs methods are treated as taking an array. The compiler and
+// ClarkeBootstrap both use it, so a call site is linked to the method it was compiled against.
+public final class OverloadResolver {
+
+    public static final int NOT_APPLICABLE = -1;
+    public static final int AMBIGUOUS = -2;
+
+    private OverloadResolver() {
+    }
+
+    // signatures have the return type first; returns the index of the chosen one
+    public static int resolve(List<Class[]> signatures, Class[] arguments) {
+        int result = mostSpecific(signatures, applicable(signatures, arguments, false));
+        if (result == NOT_APPLICABLE)
+            result = mostSpecific(signatures, applicable(signatures, arguments, true));
+        return result;
+    }
+
+    private static List<Integer> applicable(List<Class[]> signatures, Class[] arguments, boolean boxing) {
+        List<Integer> applicable = new ArrayList<Integer>();
+        for (int i = 0; i < signatures.size(); i++)
+            if (fits(arguments, signatures.get(i), boxing))
+                applicable.add(i);
+        return applicable;
+    }
+
+    private static boolean fits(Class[] arguments, Class[] signature, boolean boxing) {
+        if (signature.length - 1 != arguments.length)
+            return false;
+        for (int i = 0; i < arguments.length; i++)
+            if (!ClassUtils.isAssignable(arguments[i], signature[i + 1], boxing))
+                return false;
+        return true;
+    }
+
+    private static int mostSpecific(List<Class[]> signatures, List<Integer> applicable) {
+        int best = NOT_APPLICABLE;
+        for (int candidate : applicable) {
+            boolean maximal = true;
+            for (int other : applicable)
+                if (other != candidate && !moreSpecific(signatures.get(candidate), signatures.get(other)))
+                    maximal = false;
+            if (maximal) {
+                // the same parameters can only come from methods overriding each other, where
+                // the one with the narrowest return type is what is actually called
+                if (best == NOT_APPLICABLE || !ClassUtils.isAssignable(signatures.get(best)[0], signatures.get(candidate)[0], false))
+                    best = candidate;
+            }
+        }
+        return best != NOT_APPLICABLE || applicable.isEmpty() ? best : AMBIGUOUS;
+    }
+
+    private static boolean moreSpecific(Class[] signature, Class[] other) {
+        for (int i = 1; i < signature.length; i++)
+            if (!ClassUtils.isAssignable(signature[i], other[i], false))
+                return false;
+        return true;
+    }
+
+}
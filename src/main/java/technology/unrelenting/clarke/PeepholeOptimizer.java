@@ -0,0 +1,292 @@
+package technology.unrelenting.clarke;
+
+import me.qmx.jitescript.internal.org.objectweb.asm.Opcodes;
+import me.qmx.jitescript.internal.org.objectweb.asm.tree.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// Cleans up the naive instruction sequences produced by the code generator.
+// Level 1 removes redundant stack operations and jumps to the next instruction,
+// level 2 also threads jumps, folds branches on constants, removes dead code
+// and eliminates store/load pairs.
+public class PeepholeOptimizer implements Opcodes {
+
+    public static void optimize(InsnList insns, int level) {
+        if (level <= 0)
+            return;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (AbstractInsnNode insn : insns.toArray()) {
+                if (insn.getOpcode() < 0 || !contains(insns, insn))
+                    continue;
+                if (removeRedundantStackOps(insns, insn) || removeJumpToNext(insns, insn))
+                    changed = true;
+                else if (level >= 2 && (foldConstantBranch(insns, insn) || threadJump(insn)
+                        || invertJumpOverGoto(insns, insn) || removeStoreLoadPair(insns, insn)))
+                    changed = true;
+            }
+            if (level >= 2 && removeDeadCode(insns))
+                changed = true;
+        }
+    }
+
+    private static boolean contains(InsnList insns, AbstractInsnNode insn) {
+        return insn.getPrevious() != null || insns.getFirst() == insn;
+    }
+
+    // the next instruction, as long as nothing can jump in between
+    private static AbstractInsnNode nextReal(AbstractInsnNode insn) {
+        AbstractInsnNode next = insn.getNext();
+        while (next != null && next.getOpcode() < 0 && !(next instanceof LabelNode))
+            next = next.getNext();
+        return next;
+    }
+
+    // the first real instruction after a label, skipping over other labels, frames and line numbers
+    private static AbstractInsnNode targetOf(LabelNode label) {
+        AbstractInsnNode insn = label;
+        while (insn != null && insn.getOpcode() < 0)
+            insn = insn.getNext();
+        return insn;
+    }
+
+    private static boolean isSinglePush(AbstractInsnNode insn) {
+        int op = insn.getOpcode();
+        if (op >= ACONST_NULL && op <= ICONST_5 || op == FCONST_0 || op == FCONST_1 || op == FCONST_2
+                || op == BIPUSH || op == SIPUSH || op == ILOAD || op == FLOAD || op == ALOAD)
+            return true;
+        if (op == LDC) {
+            Object cst = ((LdcInsnNode) insn).cst;
+            return !(cst instanceof Long || cst instanceof Double);
+        }
+        return false;
+    }
+
+    private static boolean isDoublePush(AbstractInsnNode insn) {
+        int op = insn.getOpcode();
+        if (op == LCONST_0 || op == LCONST_1 || op == DCONST_0 || op == DCONST_1 || op == LLOAD || op == DLOAD)
+            return true;
+        if (op == LDC) {
+            Object cst = ((LdcInsnNode) insn).cst;
+            return cst instanceof Long || cst instanceof Double;
+        }
+        return false;
+    }
+
+    private static Integer intConstant(AbstractInsnNode insn) {
+        int op = insn.getOpcode();
+        if (op >= ICONST_M1 && op <= ICONST_5)
+            return op - ICONST_0;
+        if (op == BIPUSH || op == SIPUSH)
+            return ((IntInsnNode) insn).operand;
+        if (op == LDC && ((LdcInsnNode) insn).cst instanceof Integer)
+            return (Integer) ((LdcInsnNode) insn).cst;
+        return null;
+    }
+
+    private static boolean matches(AbstractInsnNode insn, int... opcodes) {
+        for (int opcode : opcodes) {
+            if (insn == null || insn.getOpcode() != opcode)
+                return false;
+            insn = nextReal(insn);
+        }
+        return true;
+    }
+
+    private static void remove(InsnList insns, AbstractInsnNode first, int count) {
+        for (int i = 0; i < count; i++) {
+            AbstractInsnNode next = nextReal(first);
+            insns.remove(first);
+            first = next;
+        }
+    }
+
+    private static boolean removeRedundantStackOps(InsnList insns, AbstractInsnNode insn) {
+        AbstractInsnNode next = nextReal(insn);
+        if (next == null)
+            return false;
+        if (matches(insn, DUP, POP) || matches(insn, DUP2, POP2) || matches(insn, SWAP, SWAP)
+                || isSinglePush(insn) && next.getOpcode() == POP
+                || isDoublePush(insn) && next.getOpcode() == POP2) {
+            remove(insns, insn, 2);
+            return true;
+        }
+        // swapping values of different sizes back and forth, see PrimitiveOperations.compileSwap
+        if (matches(insn, DUP_X2, POP, DUP2_X1, POP2) || matches(insn, DUP2_X1, POP2, DUP_X2, POP)
+                || matches(insn, DUP2_X2, POP2, DUP2_X2, POP2)) {
+            remove(insns, insn, 4);
+            return true;
+        }
+        if (matches(insn, DUP_X1, POP)) {
+            insns.remove(next);
+            insns.set(insn, new InsnNode(SWAP));
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean removeJumpToNext(InsnList insns, AbstractInsnNode insn) {
+        if (insn.getOpcode() != GOTO)
+            return false;
+        LabelNode target = ((JumpInsnNode) insn).label;
+        for (AbstractInsnNode next = insn.getNext(); next != null && next.getOpcode() < 0; next = next.getNext()) {
+            if (next == target) {
+                insns.remove(insn);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean foldConstantBranch(InsnList insns, AbstractInsnNode insn) {
+        Integer value = intConstant(insn);
+        AbstractInsnNode next = nextReal(insn);
+        if (value == null || next == null || (next.getOpcode() != IFEQ && next.getOpcode() != IFNE))
+            return false;
+        boolean taken = (next.getOpcode() == IFEQ) == (value == 0);
+        if (taken)
+            insns.set(next, new JumpInsnNode(GOTO, ((JumpInsnNode) next).label));
+        else
+            insns.remove(next);
+        insns.remove(insn);
+        return true;
+    }
+
+    private static boolean threadJump(AbstractInsnNode insn) {
+        if (!(insn instanceof JumpInsnNode) || insn.getOpcode() == JSR)
+            return false;
+        JumpInsnNode jump = (JumpInsnNode) insn;
+        Set<AbstractInsnNode> visited = new HashSet<AbstractInsnNode>();
+        visited.add(jump);
+        LabelNode finalLabel = jump.label;
+        AbstractInsnNode target = targetOf(finalLabel);
+        while (target != null && target.getOpcode() == GOTO) {
+            if (!visited.add(target))
+                return false; // an infinite loop of gotos, leave it alone
+            finalLabel = ((JumpInsnNode) target).label;
+            target = targetOf(finalLabel);
+        }
+        if (finalLabel == jump.label)
+            return false;
+        jump.label = finalLabel;
+        return true;
+    }
+
+    // ifXX L1; goto L2; L1: becomes ifNotXX L2; L1:
+    private static boolean invertJumpOverGoto(InsnList insns, AbstractInsnNode insn) {
+        int inverted = invert(insn.getOpcode());
+        if (inverted < 0)
+            return false;
+        AbstractInsnNode next = nextReal(insn);
+        if (next == null || next.getOpcode() != GOTO)
+            return false;
+        LabelNode skipped = ((JumpInsnNode) insn).label;
+        for (AbstractInsnNode after = next.getNext(); after != null && after.getOpcode() < 0; after = after.getNext()) {
+            if (after == skipped) {
+                insns.set(insn, new JumpInsnNode(inverted, ((JumpInsnNode) next).label));
+                insns.remove(next);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int invert(int opcode) {
+        switch (opcode) {
+            case IFEQ: return IFNE;
+            case IFNE: return IFEQ;
+            case IFLT: return IFGE;
+            case IFGE: return IFLT;
+            case IFGT: return IFLE;
+            case IFLE: return IFGT;
+            case IF_ICMPEQ: return IF_ICMPNE;
+            case IF_ICMPNE: return IF_ICMPEQ;
+            case IF_ICMPLT: return IF_ICMPGE;
+            case IF_ICMPGE: return IF_ICMPLT;
+            case IF_ICMPGT: return IF_ICMPLE;
+            case IF_ICMPLE: return IF_ICMPGT;
+            case IF_ACMPEQ: return IF_ACMPNE;
+            case IF_ACMPNE: return IF_ACMPEQ;
+            case IFNULL: return IFNONNULL;
+            case IFNONNULL: return IFNULL;
+            default: return -1;
+        }
+    }
+
+    private static boolean removeStoreLoadPair(InsnList insns, AbstractInsnNode insn) {
+        AbstractInsnNode next = nextReal(insn);
+        if (!(insn instanceof VarInsnNode) || !(next instanceof VarInsnNode)
+                || ((VarInsnNode) insn).var != ((VarInsnNode) next).var)
+            return false;
+        int var = ((VarInsnNode) insn).var;
+        // loading a variable and storing it straight back does nothing
+        if (insn.getOpcode() >= ILOAD && insn.getOpcode() <= ALOAD
+                && next.getOpcode() == insn.getOpcode() - ILOAD + ISTORE) {
+            remove(insns, insn, 2);
+            return true;
+        }
+        int store = insn.getOpcode();
+        int load = next.getOpcode();
+        if (!(store >= ISTORE && store <= ASTORE && load == store - ISTORE + ILOAD))
+            return false;
+        if (isRead(insns, var, next)) {
+            // still needed later: keep the store, but take the value from the stack
+            insns.insertBefore(insn, new InsnNode(store == LSTORE || store == DSTORE ? DUP2 : DUP));
+            insns.remove(next);
+        } else {
+            remove(insns, insn, 2);
+        }
+        return true;
+    }
+
+    private static boolean isRead(InsnList insns, int var, AbstractInsnNode except) {
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn == except)
+                continue;
+            if (insn instanceof VarInsnNode && ((VarInsnNode) insn).var == var
+                    && insn.getOpcode() >= ILOAD && insn.getOpcode() <= ALOAD)
+                return true;
+            if (insn instanceof IincInsnNode && ((IincInsnNode) insn).var == var)
+                return true;
+        }
+        return false;
+    }
+
+    static boolean removeDeadCode(InsnList insns) {
+        Set<LabelNode> targets = new HashSet<LabelNode>();
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof JumpInsnNode)
+                targets.add(((JumpInsnNode) insn).label);
+            else if (insn instanceof TableSwitchInsnNode) {
+                targets.add(((TableSwitchInsnNode) insn).dflt);
+                for (Object label : ((TableSwitchInsnNode) insn).labels)
+                    targets.add((LabelNode) label);
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                targets.add(((LookupSwitchInsnNode) insn).dflt);
+                for (Object label : ((LookupSwitchInsnNode) insn).labels)
+                    targets.add((LabelNode) label);
+            }
+        }
+        boolean changed = false;
+        boolean reachable = true;
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; ) {
+            AbstractInsnNode next = insn.getNext();
+            if (insn instanceof LabelNode && targets.contains(insn)) {
+                reachable = true;
+            } else if (!reachable && !(insn instanceof LabelNode)) {
+                insns.remove(insn);
+                changed = true;
+            } else {
+                int op = insn.getOpcode();
+                if (op == GOTO || op == ATHROW || (op >= IRETURN && op <= RETURN)
+                        || op == TABLESWITCH || op == LOOKUPSWITCH)
+                    reachable = false;
+            }
+            insn = next;
+        }
+        return changed;
+    }
+
+}
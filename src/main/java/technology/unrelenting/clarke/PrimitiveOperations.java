@@ -1,11 +1,16 @@
 package technology.unrelenting.clarke;
 
 import me.qmx.jitescript.CodeBlock;
+import me.qmx.jitescript.internal.org.objectweb.asm.Opcodes;
 import me.qmx.jitescript.internal.org.objectweb.asm.tree.LabelNode;
-import org.antlr.v4.runtime.tree.TerminalNode;
 
+import java.io.PrintStream;
+import java.lang.reflect.Array;
 import java.util.Map;
-import java.util.Stack;
+
+import static me.qmx.jitescript.util.CodegenUtils.ci;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
 
 public class PrimitiveOperations {
 
@@ -32,7 +37,7 @@ public class PrimitiveOperations {
             block.dup2_x2().pop2();
     }
 
-    public static void compileSwap(CodeBlock block, Stack<Class> classStack) {
+    public static void compileSwap(CodeBlock block, TypeStack classStack) {
         Class upper = classStack.pop();
         Class lower = classStack.pop();
         compileSwap(block, upper, lower);
@@ -40,7 +45,7 @@ public class PrimitiveOperations {
         classStack.push(lower);
     }
 
-    public static void compileDup(CodeBlock block, Stack<Class> classStack) {
+    public static void compileDup(CodeBlock block, TypeStack classStack) {
         Class upper = classStack.pop();
         if (isTwoSlot(upper))
             block.dup2();
@@ -50,7 +55,7 @@ public class PrimitiveOperations {
         classStack.push(upper);
     }
 
-    public static void compilePop(CodeBlock block, Stack<Class> classStack) {
+    public static void compilePop(CodeBlock block, TypeStack classStack) {
         Class upper = classStack.pop();
         if (isTwoSlot(upper))
             block.pop2();
@@ -58,10 +63,10 @@ public class PrimitiveOperations {
             block.pop();
     }
 
-    public static void compileStore(CodeBlock block, Stack<Class> classStack, Map<Integer, Class> varTypeMap, int varNumber) {
+    public static void compileStore(CodeBlock block, TypeStack classStack, Map<Integer, Class> varTypeMap, int varNumber) {
         Class upper = classStack.pop();
         varTypeMap.put(varNumber, upper);
-        if (upper == int.class)
+        if (upper == int.class || upper == boolean.class)
             block.istore(varNumber);
         else if (upper == long.class)
             block.lstore(varNumber);
@@ -73,9 +78,9 @@ public class PrimitiveOperations {
             block.astore(varNumber);
     }
 
-    public static void compileLoad(CodeBlock block, Stack<Class> classStack, Map<Integer, Class> varTypeMap, int varNumber) {
+    public static void compileLoad(CodeBlock block, TypeStack classStack, Map<Integer, Class> varTypeMap, int varNumber) {
         Class varClass = varTypeMap.get(varNumber);
-        if (varClass == int.class)
+        if (varClass == int.class || varClass == boolean.class)
             block.iload(varNumber);
         else if (varClass == long.class)
             block.lload(varNumber);
@@ -88,22 +93,62 @@ public class PrimitiveOperations {
         classStack.push(varClass);
     }
 
-    public static void compileOver(CodeBlock block, Stack<Class> classStack, Map<Integer, Class> varTypeMap) {
-        compileStore(block, classStack, varTypeMap, 0); // a b -- a
-        compileDup(block, classStack); // a -- a a
-        compileLoad(block, classStack, varTypeMap, 0); // a a -- a a b
-        compileSwap(block, classStack); // a a b -- a b a
+    // Shuffles are done with stack instructions where possible; otherwise the values are
+    // spilled to scratch locals starting at scratchSlot and loaded back in the new order.
+    public static void compileShuffle(CodeBlock block, TypeStack classStack, Map<Integer, Class> varTypeMap,
+                                      int scratchSlot, StackShuffler.Shuffle shuffle) {
+        Class[] window = classStack.top(shuffle.window);
+        boolean[] twoSlot = new boolean[window.length];
+        for (int i = 0; i < twoSlot.length; i++)
+            twoSlot[i] = isTwoSlot(window[i]);
+        int[] opcodes = StackShuffler.instructions(twoSlot, shuffle);
+        if (opcodes != null) {
+            for (int opcode : opcodes)
+                block.visitInsn(opcode);
+            classStack.drop(window.length);
+            classStack.pushAll(shuffle.apply(window));
+        } else {
+            int[] slots = new int[window.length];
+            for (int i = window.length - 1; i >= 0; i--) {
+                slots[i] = scratchSlot;
+                scratchSlot += twoSlot[i] ? 2 : 1;
+                compileStore(block, classStack, varTypeMap, slots[i]);
+            }
+            for (int index : shuffle.target)
+                compileLoad(block, classStack, varTypeMap, slots[index]);
+        }
     }
 
-    public static void compilePrintln(CodeBlock block, Stack<Class> classStack) {
+    // print and println call the overload for the type on the stack, so nothing gets boxed,
+    // either on System.out or, with --buffered-output, on BufferedOutput
+    public static void compilePrint(CodeBlock block, TypeStack classStack, boolean newline, boolean buffered) {
         Class upper = classStack.pop();
-        if (upper == int.class)
-            block.iprintln();
-        else
-            block.aprintln();
+        Class printed = upper.isPrimitive() || upper == String.class ? upper : Object.class;
+        String method = newline ? "println" : "print";
+        if (buffered) {
+            block.invokestatic(p(BufferedOutput.class), method, sig(void.class, printed));
+        } else {
+            block.getstatic(p(System.class), "out", ci(PrintStream.class));
+            if (isTwoSlot(upper)) {
+                block.dup_x2()
+                    .pop();
+            } else {
+                block.swap();
+            }
+            block.invokevirtual(p(PrintStream.class), method, sig(void.class, printed));
+        }
     }
 
-    public static Class castNumericTypes(CodeBlock block, Stack<Class> classStack) {
+    public static void compileFlush(CodeBlock block, boolean buffered) {
+        if (buffered) {
+            block.invokestatic(p(BufferedOutput.class), "flush", sig(void.class));
+        } else {
+            block.getstatic(p(System.class), "out", ci(PrintStream.class))
+                .invokevirtual(p(PrintStream.class), "flush", sig(void.class));
+        }
+    }
+
+    public static Class castNumericTypes(CodeBlock block, TypeStack classStack) {
         Class rightOperandType = classStack.pop();
         Class leftOperandType = classStack.pop();
         Class result = castNumericTypes(block, rightOperandType, leftOperandType);
@@ -166,185 +211,359 @@ public class PrimitiveOperations {
         return null;
     }
 
-    public static void compileNumericOperation(CodeBlock block, Stack<Class> classStack, String op) {
+    public static void compileNumericOperation(CodeBlock block, TypeStack classStack, int op) {
         Class operandsClass = castNumericTypes(block, classStack);
 
-        if (op.equals("+")) {
-            if (operandsClass == int.class)
-                block.iadd();
-            else if (operandsClass == long.class)
-                block.ladd();
-            else if (operandsClass == float.class)
-                block.fadd();
-            else if (operandsClass == double.class)
-                block.dadd();
-        } else if (op.equals("-")) {
-            if (operandsClass == int.class)
-                block.isub();
-            else if (operandsClass == long.class)
-                block.lsub();
-            else if (operandsClass == float.class)
-                block.fsub();
-            else if (operandsClass == double.class)
-                block.dsub();
-        } else if (op.equals("*")) {
-            if (operandsClass == int.class)
-                block.imul();
-            else if (operandsClass == long.class)
-                block.lmul();
-            else if (operandsClass == float.class)
-                block.fmul();
-            else if (operandsClass == double.class)
-                block.dmul();
-        } else if (op.equals("/")) {
-            if (operandsClass == int.class)
-                block.idiv();
-            else if (operandsClass == long.class)
-                block.ldiv();
-            else if (operandsClass == float.class)
-                block.fdiv();
-            else if (operandsClass == double.class)
-                block.ddiv();
-        } else if (op.equals("%")) {
-            if (operandsClass == int.class)
-                block.irem();
-            else if (operandsClass == long.class)
-                block.lrem();
-            else if (operandsClass == float.class)
-                block.frem();
-            else if (operandsClass == double.class)
-                block.drem();
+        switch (op) {
+            case ClarkeLexer.Plus:
+                if (operandsClass == int.class)
+                    block.iadd();
+                else if (operandsClass == long.class)
+                    block.ladd();
+                else if (operandsClass == float.class)
+                    block.fadd();
+                else if (operandsClass == double.class)
+                    block.dadd();
+                break;
+            case ClarkeLexer.Minus:
+                if (operandsClass == int.class)
+                    block.isub();
+                else if (operandsClass == long.class)
+                    block.lsub();
+                else if (operandsClass == float.class)
+                    block.fsub();
+                else if (operandsClass == double.class)
+                    block.dsub();
+                break;
+            case ClarkeLexer.Times:
+                if (operandsClass == int.class)
+                    block.imul();
+                else if (operandsClass == long.class)
+                    block.lmul();
+                else if (operandsClass == float.class)
+                    block.fmul();
+                else if (operandsClass == double.class)
+                    block.dmul();
+                break;
+            case ClarkeLexer.Divide:
+                if (operandsClass == int.class)
+                    block.idiv();
+                else if (operandsClass == long.class)
+                    block.ldiv();
+                else if (operandsClass == float.class)
+                    block.fdiv();
+                else if (operandsClass == double.class)
+                    block.ddiv();
+                break;
+            case ClarkeLexer.Remainder:
+                if (operandsClass == int.class)
+                    block.irem();
+                else if (operandsClass == long.class)
+                    block.lrem();
+                else if (operandsClass == float.class)
+                    block.frem();
+                else if (operandsClass == double.class)
+                    block.drem();
+                break;
         }
     }
 
-    public static void compileBooleanOperation(CodeBlock block, Stack<Class> classStack, String op)
+    public static boolean isComparison(int op) {
+        return op == ClarkeLexer.Equal || op == ClarkeLexer.NotEqual || op == ClarkeLexer.Less || op == ClarkeLexer.Greater
+                || op == ClarkeLexer.LessEqual || op == ClarkeLexer.GreaterEqual;
+    }
+
+    // ∧, ∨ and ¬ on booleans, which are always 0 or 1, are computed with iand, ior and ixor
+    // instead of branches, so they evaluate both operands, which are already on the stack anyway.
+    public static void compileBooleanOperation(CodeBlock block, TypeStack classStack, int op)
         throws CompilerException {
+        if (isComparison(op)) {
+            compileComparisonValue(block, classStack, op, compileComparisonOperands(block, classStack));
+            return;
+        }
         Class upper = classStack.pop();
-        if (op.equals("¬")) {
-            // if (upper != boolean.class)
-            //     throw new Exception("Can't apply logical NOT to a non-boolean");
-            LabelNode stopLabel = new LabelNode();
-            LabelNode trueLabel = new LabelNode();
-            block.ifeq(trueLabel)
-                .iconst_0()
-                .go_to(stopLabel)
-                .label(trueLabel)
-                .iconst_1()
-                .label(stopLabel);
+        if (op == ClarkeLexer.Not) {
+            if (upper == boolean.class) {
+                block.iconst_1()
+                    .ixor();
+            } else {
+                // anything else is true unless it is zero
+                LabelNode stopLabel = new LabelNode();
+                LabelNode trueLabel = new LabelNode();
+                classStack.mark(trueLabel);
+                classStack.mark(stopLabel, boolean.class);
+                block.ifeq(trueLabel)
+                    .iconst_0()
+                    .go_to(stopLabel)
+                    .label(trueLabel)
+                    .iconst_1()
+                    .label(stopLabel);
+            }
             classStack.push(boolean.class);
             return;
         }
         Class lower = classStack.pop();
-        // ∧ and ∨ are a bit more complicated than what javac generates
-        // because we always have both operands already on the stack
-        // whereas javac can skip some loading and avoid dealing with the pop
-        if (op.equals("∧")) {
-            if (upper != boolean.class || lower != boolean.class)
-                throw new CompilerException("Can't apply logical AND to a non-boolean");
-            LabelNode stopLabel = new LabelNode();
-            LabelNode falseLabel = new LabelNode();
-            LabelNode falseLabel1 = new LabelNode();
-            block.ifeq(falseLabel1)
-                .ifeq(falseLabel)
-                .iconst_1()
-                .go_to(stopLabel)
-                .label(falseLabel1)
-                .pop()
-                .label(falseLabel)
-                .iconst_0()
-                .label(stopLabel);
-            classStack.push(boolean.class);
-        } else if (op.equals("∨")) {
-            if (upper != boolean.class || lower != boolean.class)
-                throw new CompilerException("Can't apply logical OR to a non-boolean");
-            LabelNode stopLabel = new LabelNode();
-            LabelNode trueLabel = new LabelNode();
-            LabelNode trueLabel1 = new LabelNode();
-            LabelNode falseLabel = new LabelNode();
-            block.ifne(trueLabel1)
-                .ifeq(falseLabel)
-                .go_to(trueLabel)
-                .label(trueLabel1)
-                .pop()
-                .label(trueLabel)
-                .iconst_1()
-                .go_to(stopLabel)
-                .label(falseLabel)
-                .iconst_0()
-                .label(stopLabel);
-            classStack.push(boolean.class);
-        } else if (op.equals("==") || op.equals("≠") || op.equals("<") || op.equals(">")
-                || op.equals("≤") || op.equals("≥")) {
-            LabelNode falseLabel = new LabelNode();
-            LabelNode stopLabel = new LabelNode();
-            if (isNumeric(upper) && isNumeric(lower)) {
-                Class numClass = castNumericTypes(block, upper, lower);
-                if (numClass == int.class) { // WHY
-                    if (op.equals("==") || op.equals("≠"))
-                        block.if_icmpne(falseLabel);
-                    else if (op.equals("<"))
-                        block.if_icmpge(falseLabel);
-                    else if (op.equals("≤"))
-                        block.if_icmpgt(falseLabel);
-                    else if (op.equals(">"))
-                        block.if_icmple(falseLabel);
-                    else if (op.equals("≥"))
-                        block.if_icmplt(falseLabel);
-                } else {
-                    if (numClass == long.class)
-                        block.lcmp();
-                    else if (numClass == float.class)
-                        block.fcmpl();
-                    else if (numClass == double.class)
-                        block.dcmpl();
-                    if (op.equals("==") || op.equals("≠"))
-                        block.ifne(falseLabel);
-                    else if (op.equals("<"))
-                        block.ifge(falseLabel);
-                    else if (op.equals("≤"))
-                        block.ifgt(falseLabel);
-                    else if (op.equals(">"))
-                        block.ifle(falseLabel);
-                    else if (op.equals("≥"))
-                        block.iflt(falseLabel);
-                }
-            } else {
-                block.if_acmpne(falseLabel);
-            }
-            if (op.equals("≠"))
-                block.iconst_0();
+        if (upper != boolean.class || lower != boolean.class)
+            throw new CompilerException("Can't apply logical " + (op == ClarkeLexer.And ? "AND" : "OR") + " to a non-boolean");
+        if (op == ClarkeLexer.And)
+            block.iand();
+        else
+            block.ior();
+        classStack.push(boolean.class);
+    }
+
+    // Converts the operands of a comparison to a common type and replaces them with its boolean
+    // result on the type stack. Nothing is compared yet: that is up to compileComparisonValue,
+    // or to compileComparisonJump when the result only decides a branch. Returns the type of
+    // the operands, Object for references.
+    public static Class compileComparisonOperands(CodeBlock block, TypeStack classStack) {
+        Class upper = classStack.pop();
+        Class lower = classStack.pop();
+        Class operands = Object.class;
+        if (isNumeric(upper) && isNumeric(lower))
+            operands = castNumericTypes(block, upper, lower);
+        classStack.push(boolean.class);
+        return operands;
+    }
+
+    // Leaves the result of the comparison on the stack. Booleans are told apart with ixor,
+    // everything else takes a branch.
+    public static void compileComparisonValue(CodeBlock block, TypeStack classStack, int op, Class operands) {
+        if (operands == boolean.class && (op == ClarkeLexer.Equal || op == ClarkeLexer.NotEqual)) {
+            block.ixor();
+            if (op == ClarkeLexer.Equal)
+                block.iconst_1()
+                    .ixor();
+            return;
+        }
+        classStack.pop();
+        LabelNode falseLabel = new LabelNode();
+        LabelNode stopLabel = new LabelNode();
+        classStack.mark(falseLabel);
+        classStack.mark(stopLabel, boolean.class);
+        compileComparisonJump(block, op, operands, false, falseLabel);
+        block.iconst_1()
+            .go_to(stopLabel)
+            .label(falseLabel)
+            .iconst_0()
+            .label(stopLabel);
+        classStack.push(boolean.class);
+    }
+
+    // Jumps to target if the comparison comes out as jumpIf. Floating point values are compared so
+    // that every comparison with NaN is false, as in Java. References can only be compared for
+    // identity: ≠ tells if they are different objects, every other comparison if they are the same.
+    public static void compileComparisonJump(CodeBlock block, int op, Class operands, boolean jumpIf, LabelNode target) {
+        if (operands == Object.class && op != ClarkeLexer.NotEqual)
+            op = ClarkeLexer.Equal;
+        int test = jumpIf ? op : negate(op);
+        if (operands == Object.class) {
+            if (test == ClarkeLexer.Equal)
+                block.if_acmpeq(target);
             else
-                block.iconst_1();
-            block.go_to(stopLabel).label(falseLabel);
-            if (op.equals("≠"))
-                block.iconst_1();
+                block.if_acmpne(target);
+            return;
+        }
+        if (operands == int.class || operands == boolean.class) {
+            if (test == ClarkeLexer.Equal)
+                block.if_icmpeq(target);
+            else if (test == ClarkeLexer.NotEqual)
+                block.if_icmpne(target);
+            else if (test == ClarkeLexer.Less)
+                block.if_icmplt(target);
+            else if (test == ClarkeLexer.LessEqual)
+                block.if_icmple(target);
+            else if (test == ClarkeLexer.Greater)
+                block.if_icmpgt(target);
             else
-                block.iconst_0();
-            block.label(stopLabel);
+                block.if_icmpge(target);
+            return;
         }
-        classStack.push(boolean.class);
+        // NaN has to end up on the side that makes the comparison false
+        boolean nanIsGreater = op == ClarkeLexer.Less || op == ClarkeLexer.LessEqual;
+        if (operands == long.class)
+            block.lcmp();
+        else if (operands == float.class && nanIsGreater)
+            block.fcmpg();
+        else if (operands == float.class)
+            block.fcmpl();
+        else if (nanIsGreater)
+            block.dcmpg();
+        else
+            block.dcmpl();
+        if (test == ClarkeLexer.Equal)
+            block.ifeq(target);
+        else if (test == ClarkeLexer.NotEqual)
+            block.ifne(target);
+        else if (test == ClarkeLexer.Less)
+            block.iflt(target);
+        else if (test == ClarkeLexer.LessEqual)
+            block.ifle(target);
+        else if (test == ClarkeLexer.Greater)
+            block.ifgt(target);
+        else
+            block.ifge(target);
+    }
+
+    // the comparison that is true exactly when op is false, NaN aside
+    private static int negate(int op) {
+        switch (op) {
+            case ClarkeLexer.Equal: return ClarkeLexer.NotEqual;
+            case ClarkeLexer.NotEqual: return ClarkeLexer.Equal;
+            case ClarkeLexer.Less: return ClarkeLexer.GreaterEqual;
+            case ClarkeLexer.GreaterEqual: return ClarkeLexer.Less;
+            case ClarkeLexer.Greater: return ClarkeLexer.LessEqual;
+            default: return ClarkeLexer.Greater;
+        }
+    }
+
+    public static Class arrayOf(Class componentType) {
+        return Array.newInstance(componentType, 0).getClass();
+    }
+
+    // the types the language has values of; other primitives only show up in Java signatures
+    public static void checkElementType(Class componentType)
+        throws CompilerException {
+        if (componentType == byte.class || componentType == short.class || componentType == char.class)
+            throw new CompilerException("Arrays of " + componentType + " are not supported.");
+    }
+
+    // n T new: a new array of n Ts
+    public static void compileNewArray(CodeBlock block, TypeStack classStack, Class componentType)
+        throws CompilerException {
+        checkElementType(componentType);
+        if (classStack.pop() != int.class)
+            throw new CompilerException("The length of a new array must be an int.");
+        if (componentType == boolean.class)
+            block.newarray(Opcodes.T_BOOLEAN);
+        else if (componentType == int.class)
+            block.newarray(Opcodes.T_INT);
+        else if (componentType == long.class)
+            block.newarray(Opcodes.T_LONG);
+        else if (componentType == float.class)
+            block.newarray(Opcodes.T_FLOAT);
+        else if (componentType == double.class)
+            block.newarray(Opcodes.T_DOUBLE);
+        else
+            block.anewarray(p(componentType));
+        classStack.push(arrayOf(componentType));
     }
 
-    public static void compilePrimitiveOperation(CodeBlock block, Stack<Class> classStack, Map<Integer, Class> varTypeMap, TerminalNode operation)
+    // loads the element at the index on top of the stack from the array under it
+    public static void compileArrayLoad(CodeBlock block, Class componentType) {
+        if (componentType == boolean.class)
+            block.baload();
+        else if (componentType == int.class)
+            block.iaload();
+        else if (componentType == long.class)
+            block.laload();
+        else if (componentType == float.class)
+            block.faload();
+        else if (componentType == double.class)
+            block.daload();
+        else
+            block.aaload();
+    }
+
+    public static void compileArrayStore(CodeBlock block, Class componentType) {
+        if (componentType == boolean.class)
+            block.bastore();
+        else if (componentType == int.class)
+            block.iastore();
+        else if (componentType == long.class)
+            block.lastore();
+        else if (componentType == float.class)
+            block.fastore();
+        else if (componentType == double.class)
+            block.dastore();
+        else
+            block.aastore();
+    }
+
+    // array index @ leaves the element
+    public static void compileArrayLoad(CodeBlock block, TypeStack classStack)
         throws CompilerException {
-        String op = operation.getSymbol().getText();
-        if (op.equals("+") || op.equals("-") || op.equals("*") || op.equals("/")
-            || op.equals("%"))
-            compileNumericOperation(block, classStack, op);
-        else if (op.equals("¬") || op.equals("∧") || op.equals("∨") || op.equals("==")
-            || op.equals("≠") || op.equals("<") || op.equals(">")
-            || op.equals("≤") || op.equals("≥"))
-            compileBooleanOperation(block, classStack, op);
-        else if (op.equals("dup"))
-            compileDup(block, classStack);
-        else if (op.equals("swap"))
-            compileSwap(block, classStack);
-        else if (op.equals("pop"))
-            compilePop(block, classStack);
-        else if (op.equals("over"))
-            compileOver(block, classStack, varTypeMap);
-        else if (op.equals("println"))
-            compilePrintln(block, classStack);
+        if (classStack.pop() != int.class || !classStack.peek().isArray())
+            throw new CompilerException("@ needs an array and an int index.");
+        Class componentType = classStack.pop().getComponentType();
+        checkElementType(componentType);
+        compileArrayLoad(block, componentType);
+        classStack.push(componentType);
+    }
+
+    // array index value ! stores the value in the array
+    public static void compileArrayStore(CodeBlock block, TypeStack classStack)
+        throws CompilerException {
+        Class valueType = classStack.pop();
+        if (classStack.pop() != int.class || !classStack.peek().isArray())
+            throw new CompilerException("! needs an array, an int index and a value.");
+        Class<?> componentType = classStack.pop().getComponentType();
+        checkElementType(componentType);
+        if (componentType.isPrimitive() ? valueType != componentType : !componentType.isAssignableFrom(valueType))
+            throw new CompilerException("Can't store " + valueType + " in an array of " + componentType + ".");
+        compileArrayStore(block, componentType);
+    }
+
+    public static void compileArrayLength(CodeBlock block, TypeStack classStack)
+        throws CompilerException {
+        if (!classStack.pop().isArray())
+            throw new CompilerException("length needs an array.");
+        block.arraylength();
+        classStack.push(int.class);
+    }
+
+    public static void compilePrimitiveOperation(CodeBlock block, TypeStack classStack, Map<Integer, Class> varTypeMap,
+                                                 int scratchSlot, int op, boolean bufferedOutput)
+        throws CompilerException {
+        switch (op) {
+            case ClarkeLexer.Plus:
+            case ClarkeLexer.Minus:
+            case ClarkeLexer.Times:
+            case ClarkeLexer.Divide:
+            case ClarkeLexer.Remainder:
+                compileNumericOperation(block, classStack, op);
+                break;
+            case ClarkeLexer.Not:
+            case ClarkeLexer.And:
+            case ClarkeLexer.Or:
+            case ClarkeLexer.Equal:
+            case ClarkeLexer.NotEqual:
+            case ClarkeLexer.Less:
+            case ClarkeLexer.Greater:
+            case ClarkeLexer.LessEqual:
+            case ClarkeLexer.GreaterEqual:
+                compileBooleanOperation(block, classStack, op);
+                break;
+            case ClarkeLexer.Dup:
+                compileDup(block, classStack);
+                break;
+            case ClarkeLexer.Swap:
+                compileSwap(block, classStack);
+                break;
+            case ClarkeLexer.Pop:
+                compilePop(block, classStack);
+                break;
+            case ClarkeLexer.Pick:
+                throw new CompilerException("pick needs a constant index.");
+            case ClarkeLexer.Print:
+            case ClarkeLexer.Println:
+                compilePrint(block, classStack, op == ClarkeLexer.Println, bufferedOutput);
+                break;
+            case ClarkeLexer.Flush:
+                compileFlush(block, bufferedOutput);
+                break;
+            case ClarkeLexer.At:
+                compileArrayLoad(block, classStack);
+                break;
+            case ClarkeLexer.Store:
+                compileArrayStore(block, classStack);
+                break;
+            case ClarkeLexer.Length:
+                compileArrayLength(block, classStack);
+                break;
+            default:
+                compileShuffle(block, classStack, varTypeMap, scratchSlot, StackShuffler.forOperation(op));
+        }
     }
 
 }
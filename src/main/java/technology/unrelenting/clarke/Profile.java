@@ -0,0 +1,102 @@
+package technology.unrelenting.clarke;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// The counters of --profile: every probe is linked to a LongAdder of its own
+public final class Profile {
+
+    public interface ProfileMXBean {
+        // probe names to counts, hottest first
+        Map<String, Long> getCounts();
+
+        String getReport();
+
+        void reset();
+    }
+
+    static final String OBJECT_NAME = "technology.unrelenting.clarke:type=Profile";
+
+    private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    private static final MethodHandle INCREMENT;
+
+    static {
+        try {
+            INCREMENT = MethodHandles.publicLookup().findVirtual(LongAdder.class, "increment", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override public void run() {
+                if (!counters.isEmpty())
+                    System.err.print(report());
+            }
+        });
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ProfileMXBean() {
+                public Map<String, Long> getCounts() {
+                    return counts();
+                }
+
+                public String getReport() {
+                    return report();
+                }
+
+                public void reset() {
+                    Profile.reset();
+                }
+            }, new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            // another copy of these classes registered first; the counts are still printed at exit
+        }
+    }
+
+    private Profile() {
+    }
+
+    public static CallSite probe(MethodHandles.Lookup lookup, String name, MethodType type, String probe) {
+        LongAdder counter = new LongAdder();
+        LongAdder existing = counters.putIfAbsent(probe, counter);
+        return new ConstantCallSite(INCREMENT.bindTo(existing != null ? existing : counter));
+    }
+
+    public static Map<String, Long> counts() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet())
+            entries.add(new AbstractMap.SimpleImmutableEntry<String, Long>(counter.getKey(), counter.getValue().sum()));
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                int byCount = Long.compare(b.getValue(), a.getValue());
+                return byCount != 0 ? byCount : a.getKey().compareTo(b.getKey());
+            }
+        });
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : entries)
+            counts.put(entry.getKey(), entry.getValue());
+        return counts;
+    }
+
+    public static String report() {
+        StringBuilder report = new StringBuilder("Clarke profile, hottest first:\n");
+        for (Map.Entry<String, Long> entry : counts().entrySet())
+            report.append(String.format("%15d  %s\n", entry.getValue(), entry.getKey()));
+        return report.toString();
+    }
+
+    // Counters keep their call sites, so they are zeroed rather than removed.
+    public static void reset() {
+        for (LongAdder counter : counters.values())
+            counter.reset();
+    }
+
+}
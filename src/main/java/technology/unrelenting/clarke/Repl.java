@@ -0,0 +1,239 @@
+package technology.unrelenting.clarke;
+
+import me.qmx.jitescript.CodeBlock;
+import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.internal.org.objectweb.asm.Opcodes;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.misc.Interval;
+import org.apache.commons.lang3.ArrayUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+
+// Evaluates Clarke a line at a time against a stack that is kept between lines (--repl).
+// A line is compiled into the method ReplLine.line, which takes the stack as its arguments and
+// returns what is left as an array, and runs as bytecode like any other method. On Java 15 and
+// later the class is a hidden class, which is unloaded as soon as the line has run; before that,
+// it gets a class loader of its own, which takes a collection more to go away.
+// Lines starting with "class" define classes that later lines can call. Their classes live in a
+// loader of the session next to the class ReplSession, whose lookup defines the lines; redefining
+// a class replaces that loader with a new one.
+public class Repl {
+
+    static final String SESSION_CLASS = "ReplSession";
+    static final String LINE_CLASS = "ReplLine";
+    static final String LINE_METHOD = "line";
+
+    private static final MethodHandle DEFINE_HIDDEN_CLASS = hiddenClassDefiner();
+
+    private final CompilerOptions options;
+    private final List<Object> values = new ArrayList<Object>();
+    private final List<Class> types = new ArrayList<Class>();
+    private final Map<String, String> definitions = new LinkedHashMap<String, String>();
+    private ClassLoader sessionLoader;
+    private MethodHandles.Lookup sessionLookup;
+
+    public Repl()
+        throws CompilerException {
+        this(new CompilerOptions());
+    }
+
+    public Repl(CompilerOptions options)
+        throws CompilerException {
+        this.options = options;
+        defineSession(Collections.<String, String>emptyMap());
+    }
+
+    // the values on the stack, bottom first
+    public List<Object> stack() {
+        return Collections.unmodifiableList(values);
+    }
+
+    public List<Class> stackTypes() {
+        return Collections.unmodifiableList(types);
+    }
+
+    public void clear() {
+        values.clear();
+        types.clear();
+    }
+
+    // Runs one line and returns the stack after it. When it doesn't compile the stack stays as it was;
+    // when it throws, InvocationTargetException wraps what it threw, and the stack also stays as it was.
+    public List<Object> eval(String line)
+        throws CompilerException, InvocationTargetException {
+        if (line.trim().startsWith("class ")) {
+            define(line);
+            return stack();
+        }
+        StringBuilder source = new StringBuilder("class ").append(LINE_CLASS).append("; ").append(LINE_METHOD).append(" ∷");
+        for (Class type : types)
+            source.append(' ').append(typeName(type));
+        source.append(" → java.lang.Object[] = ").append(line).append(";\n");
+        for (String definition : definitions.values())
+            source.append(definition).append('\n');
+
+        ClassGenerator generator = parse(source.toString());
+        generator.buildSignatures();
+        generator.returnsStack = true;
+        JiteClass lineClass = generator.generateClass(LINE_CLASS);
+        Object[] result;
+        try {
+            result = (Object[]) lineMethod(lineClass).invokeWithArguments(values);
+        } catch (Throwable ex) {
+            throw new InvocationTargetException(ex);
+        }
+        values.clear();
+        values.addAll(Arrays.asList(result));
+        types.clear();
+        types.addAll(Arrays.asList(generator.returnedStack));
+        return stack();
+    }
+
+    public void run(InputStream input, PrintStream output)
+        throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+        output.print("> ");
+        output.flush();
+        for (String line; (line = in.readLine()) != null; ) {
+            if (!line.trim().isEmpty()) {
+                try {
+                    eval(line);
+                    output.println(format());
+                } catch (CompilerException ex) {
+                    output.println(ex.getMessage());
+                } catch (InvocationTargetException ex) {
+                    output.println(ex.getCause());
+                }
+            }
+            output.print("> ");
+            output.flush();
+        }
+        output.println();
+    }
+
+    private String format() {
+        StringBuilder text = new StringBuilder();
+        for (Object value : values) {
+            if (text.length() > 0)
+                text.append(' ');
+            if (value instanceof String)
+                text.append('"').append(value).append('"');
+            else
+                text.append(ArrayUtils.toString(value));
+        }
+        return text.toString();
+    }
+
+    private void define(String line)
+        throws CompilerException {
+        ClassGenerator generator = parse(line);
+        Map<String, String> redefined = new LinkedHashMap<String, String>(definitions);
+        for (Map.Entry<String, ClarkeParser.ClassDefinitionContext> entry : generator.classesToCompile.entrySet()) {
+            ClarkeParser.ClassDefinitionContext ctx = entry.getValue();
+            redefined.remove(entry.getKey());
+            redefined.put(entry.getKey(), ctx.start.getInputStream().getText(
+                    Interval.of(ctx.start.getStartIndex(), ctx.stop.getStopIndex())));
+        }
+        defineSession(redefined);
+        definitions.clear();
+        definitions.putAll(redefined);
+    }
+
+    private void defineSession(Map<String, String> classes)
+        throws CompilerException {
+        List<JiteClass> jiteClasses = new ArrayList<JiteClass>();
+        if (!classes.isEmpty()) {
+            StringBuilder source = new StringBuilder();
+            for (String definition : classes.values())
+                source.append(definition).append('\n');
+            jiteClasses.addAll(parse(source.toString()).generate());
+        }
+        // ReplSession hands out a lookup with full access to its package, which defineHiddenClass needs
+        JiteClass session = new ClarkeClass(SESSION_CLASS, options.target);
+        session.defineMethod("lookup", Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, sig(MethodHandles.Lookup.class),
+                CodeBlock.newCodeBlock()
+                        .invokestatic(p(MethodHandles.class), "lookup", sig(MethodHandles.Lookup.class))
+                        .areturn());
+        jiteClasses.add(session);
+        CompiledProgram program = new CompiledProgram(jiteClasses, Repl.class.getClassLoader());
+        try {
+            Class<?> sessionClass = program.loadClass(SESSION_CLASS);
+            sessionLookup = (MethodHandles.Lookup) sessionClass.getMethod("lookup").invoke(null);
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+        sessionLoader = program.getClassLoader();
+    }
+
+    private MethodHandle lineMethod(JiteClass lineClass)
+        throws Throwable {
+        MethodType type = MethodType.methodType(Object[].class, types.toArray(new Class[types.size()]));
+        if (DEFINE_HIDDEN_CLASS == null) {
+            CompiledProgram program = new CompiledProgram(Collections.singletonList(lineClass), sessionLoader);
+            return MethodHandles.publicLookup().findStatic(program.loadClass(LINE_CLASS), LINE_METHOD, type);
+        }
+        MethodHandles.Lookup lookup = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(sessionLookup, lineClass.toBytes(), true);
+        return lookup.findStatic(lookup.lookupClass(), LINE_METHOD, type);
+    }
+
+    private ClassGenerator parse(String source)
+        throws CompilerException {
+        ClassGenerator generator = new ClassGenerator(options);
+        SyntaxErrors errors = new SyntaxErrors();
+        Compiler.parse(new ANTLRInputStream(source), generator, errors);
+        if (errors.first != null)
+            throw new CompilerException(errors.first);
+        return generator;
+    }
+
+    // The name a type is written with in a signature. Types that Clarke can't name, like arrays of
+    // arrays, stay on the stack as plain objects.
+    private static String typeName(Class type) {
+        if (type.isArray() && !type.getComponentType().isArray())
+            return typeName(type.getComponentType()) + "[]";
+        if (type.isArray() || type.getName().contains("$"))
+            return "java.lang.Object";
+        return type.getName();
+    }
+
+    // Lookup.defineHiddenClass(bytes, initialize) without options, so the class isn't kept alive
+    // by its loader; null before Java 15
+    private static MethodHandle hiddenClassDefiner() {
+        try {
+            Class option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            Object noOptions = Array.newInstance(option, 0);
+            MethodHandle define = MethodHandles.publicLookup().findVirtual(MethodHandles.Lookup.class, "defineHiddenClass",
+                    MethodType.methodType(MethodHandles.Lookup.class, byte[].class, boolean.class, noOptions.getClass()));
+            return MethodHandles.insertArguments(define, 3, noOptions);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static class SyntaxErrors extends BaseErrorListener {
+        String first;
+
+        @Override public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                                          int charPositionInLine, String msg, RecognitionException e) {
+            if (first == null)
+                first = "Syntax error: " + msg;
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package technology.unrelenting.clarke;
+
+import me.qmx.jitescript.internal.org.objectweb.asm.Opcodes;
+import me.qmx.jitescript.internal.org.objectweb.asm.Type;
+import me.qmx.jitescript.internal.org.objectweb.asm.tree.*;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Writes the stack map frames of a method from what the code generator knew while compiling it,
+// instead of having ASM work them out again by analyzing the bytecode. Every jump target gets
+// a frame with the stack recorded for its label. The locals that live across a jump are the
+// arguments and the ones recorded with the frame (loop counters); scratch locals are always
+// stored and loaded again within one shuffle.
+public class StackMapFrames implements Opcodes {
+
+    public static void insert(InsnList insns, Class[] signature, Map<LabelNode, TypeStack.Frame> frames) {
+        // the verifier wants a frame before unreachable code too, so there must not be any
+        PeepholeOptimizer.removeDeadCode(insns);
+        Set<LabelNode> targets = new HashSet<LabelNode>();
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext())
+            if (insn instanceof JumpInsnNode)
+                targets.add(((JumpInsnNode) insn).label);
+        // several labels can mark the same offset, which gets only one frame
+        TypeStack.Frame frame = null;
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof LabelNode && targets.contains(insn)) {
+                frame = frames.get(insn);
+                if (frame == null)
+                    throw new IllegalStateException("No stack types recorded for a jump target.");
+            } else if (insn.getOpcode() >= 0 && frame != null) {
+                Object[] locals = new Object[signature.length - 1 + frame.locals.length];
+                for (int i = 1; i < signature.length; i++)
+                    locals[i - 1] = frameType(signature[i]);
+                for (int i = 0; i < frame.locals.length; i++)
+                    locals[signature.length - 1 + i] = frameType(frame.locals[i]);
+                Object[] stackTypes = new Object[frame.stack.length];
+                for (int i = 0; i < frame.stack.length; i++)
+                    stackTypes[i] = frameType(frame.stack[i]);
+                insns.insertBefore(insn, new FrameNode(F_NEW, locals.length, locals, stackTypes.length, stackTypes));
+                frame = null;
+            }
+        }
+    }
+
+    private static Object frameType(Class klass) {
+        if (klass == long.class)
+            return LONG;
+        if (klass == float.class)
+            return FLOAT;
+        if (klass == double.class)
+            return DOUBLE;
+        if (klass.isPrimitive())
+            return INTEGER;
+        return Type.getInternalName(klass);
+    }
+
+}
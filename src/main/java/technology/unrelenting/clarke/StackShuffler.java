@@ -0,0 +1,205 @@
+package technology.unrelenting.clarke;
+
+import me.qmx.jitescript.internal.org.objectweb.asm.Opcodes;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Finds the shortest sequence of JVM stack instructions that rearranges the values on top
+// of the stack. The dup and pop family of instructions work on slots rather than values,
+// so which forms are allowed depends on whether each value takes one or two slots.
+public class StackShuffler implements Opcodes {
+
+    // A rearrangement of the top `window` values: target lists, bottom first, which of the
+    // original values (also counted bottom first) end up on the stack.
+    public static class Shuffle {
+        final int window;
+        final int[] target;
+
+        Shuffle(int window, int... target) {
+            this.window = window;
+            this.target = target;
+        }
+
+        public <T> List<T> apply(List<T> values) {
+            List<T> result = new ArrayList<T>(target.length);
+            for (int index : target)
+                result.add(values.get(values.size() - window + index));
+            return result;
+        }
+
+        public Class[] apply(Class[] types) {
+            Class[] result = new Class[target.length];
+            for (int i = 0; i < target.length; i++)
+                result[i] = types[types.length - window + target[i]];
+            return result;
+        }
+    }
+
+    private static final Shuffle DUP_SHUFFLE = new Shuffle(1, 0, 0);
+    private static final Shuffle POP_SHUFFLE = new Shuffle(1);
+    private static final Shuffle SWAP_SHUFFLE = new Shuffle(2, 1, 0);
+    private static final Shuffle OVER = new Shuffle(2, 0, 1, 0);
+    private static final Shuffle ROT = new Shuffle(3, 1, 2, 0);
+    private static final Shuffle MINUS_ROT = new Shuffle(3, 2, 0, 1);
+    private static final Shuffle NIP = new Shuffle(2, 1);
+    private static final Shuffle TUCK = new Shuffle(2, 1, 0, 1);
+    private static final Shuffle TWO_DUP = new Shuffle(2, 0, 1, 0, 1);
+    private static final Shuffle TWO_SWAP = new Shuffle(4, 2, 3, 0, 1);
+
+    // the shuffle done by a primitive operation token, null if it isn't one
+    public static Shuffle forOperation(int op) {
+        switch (op) {
+            case ClarkeLexer.Dup: return DUP_SHUFFLE;
+            case ClarkeLexer.Pop: return POP_SHUFFLE;
+            case ClarkeLexer.Swap: return SWAP_SHUFFLE;
+            case ClarkeLexer.Over: return OVER;
+            case ClarkeLexer.Rot: return ROT;
+            case ClarkeLexer.MinusRot: return MINUS_ROT;
+            case ClarkeLexer.Nip: return NIP;
+            case ClarkeLexer.Tuck: return TUCK;
+            case ClarkeLexer.TwoDup: return TWO_DUP;
+            case ClarkeLexer.TwoSwap: return TWO_SWAP;
+            default: return null;
+        }
+    }
+
+    // n pick copies the value n below the top, so 0 pick is dup and 1 pick is over
+    public static Shuffle pick(int n) {
+        int[] target = new int[n + 2];
+        for (int i = 0; i <= n; i++)
+            target[i] = i;
+        target[n + 1] = 0;
+        return new Shuffle(n + 1, target);
+    }
+
+    private static final int MAX_INSTRUCTIONS = 8;
+    private static final int MAX_STATES = 20000;
+    private static final int[] NOT_FOUND = new int[0];
+    private static final int[] OPCODES = { POP, POP2, DUP, DUP_X1, DUP_X2, DUP2, DUP2_X1, DUP2_X2, SWAP };
+    private static final Map<String, int[]> cache = new ConcurrentHashMap<String, int[]>();
+
+    // Returns the opcodes for the shuffle, or null if it can't be done with stack instructions alone.
+    public static int[] instructions(boolean[] twoSlot, Shuffle shuffle) {
+        String key = Arrays.toString(twoSlot) + Arrays.toString(shuffle.target);
+        int[] result = cache.get(key);
+        if (result == null) {
+            result = search(twoSlot, shuffle.target);
+            cache.put(key, result);
+        }
+        return result == NOT_FOUND ? null : result;
+    }
+
+    private static class Node {
+        final int[] stack;
+        final Node parent;
+        final int opcode;
+
+        Node(int[] stack, Node parent, int opcode) {
+            this.stack = stack;
+            this.parent = parent;
+            this.opcode = opcode;
+        }
+
+        int length() {
+            return parent == null ? 0 : parent.length() + 1;
+        }
+    }
+
+    // breadth-first, so the first match is the shortest sequence
+    private static int[] search(boolean[] twoSlot, int[] target) {
+        int[] start = new int[twoSlot.length];
+        for (int i = 0; i < start.length; i++)
+            start[i] = i;
+        Set<String> visited = new HashSet<String>();
+        Deque<Node> queue = new ArrayDeque<Node>();
+        queue.add(new Node(start, null, -1));
+        visited.add(Arrays.toString(start));
+        while (!queue.isEmpty() && visited.size() < MAX_STATES) {
+            Node node = queue.poll();
+            if (Arrays.equals(node.stack, target))
+                return path(node);
+            if (node.length() >= MAX_INSTRUCTIONS)
+                continue;
+            for (int opcode : OPCODES) {
+                int[] next = apply(node.stack, twoSlot, opcode);
+                if (next != null && next.length <= start.length + target.length && visited.add(Arrays.toString(next)))
+                    queue.add(new Node(next, node, opcode));
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    private static int[] path(Node node) {
+        int[] opcodes = new int[node.length()];
+        for (int i = opcodes.length - 1; i >= 0; i--, node = node.parent)
+            opcodes[i] = node.opcode;
+        return opcodes;
+    }
+
+    // the size category of the value `depth` below the top, 0 if there is none
+    private static int category(int[] stack, boolean[] twoSlot, int depth) {
+        if (depth >= stack.length)
+            return 0;
+        return twoSlot[stack[stack.length - 1 - depth]] ? 2 : 1;
+    }
+
+    // copies the top `count` values below the value `depth` below the top
+    private static int[] insertCopy(int[] stack, int count, int depth) {
+        int[] result = new int[stack.length + count];
+        int at = stack.length - 1 - depth;
+        System.arraycopy(stack, 0, result, 0, at);
+        System.arraycopy(stack, stack.length - count, result, at, count);
+        System.arraycopy(stack, at, result, at + count, stack.length - at);
+        return result;
+    }
+
+    private static int[] apply(int[] stack, boolean[] twoSlot, int opcode) {
+        int a = category(stack, twoSlot, 0);
+        int b = category(stack, twoSlot, 1);
+        int c = category(stack, twoSlot, 2);
+        int d = category(stack, twoSlot, 3);
+        switch (opcode) {
+            case POP:
+                return a == 1 ? Arrays.copyOf(stack, stack.length - 1) : null;
+            case POP2:
+                if (a == 2)
+                    return Arrays.copyOf(stack, stack.length - 1);
+                return a == 1 && b == 1 ? Arrays.copyOf(stack, stack.length - 2) : null;
+            case DUP:
+                return a == 1 ? insertCopy(stack, 1, 0) : null;
+            case DUP_X1:
+                return a == 1 && b == 1 ? insertCopy(stack, 1, 1) : null;
+            case DUP_X2:
+                if (a == 1 && b == 1 && c == 1)
+                    return insertCopy(stack, 1, 2);
+                return a == 1 && b == 2 ? insertCopy(stack, 1, 1) : null;
+            case DUP2:
+                if (a == 2)
+                    return insertCopy(stack, 1, 0);
+                return a == 1 && b == 1 ? insertCopy(stack, 2, 1) : null;
+            case DUP2_X1:
+                if (a == 2 && b == 1)
+                    return insertCopy(stack, 1, 1);
+                return a == 1 && b == 1 && c == 1 ? insertCopy(stack, 2, 2) : null;
+            case DUP2_X2:
+                if (a == 2 && b == 2)
+                    return insertCopy(stack, 1, 1);
+                if (a == 2 && b == 1 && c == 1)
+                    return insertCopy(stack, 1, 2);
+                if (a == 1 && b == 1 && c == 2)
+                    return insertCopy(stack, 2, 2);
+                return a == 1 && b == 1 && c == 1 && d == 1 ? insertCopy(stack, 2, 3) : null;
+            case SWAP:
+                if (a != 1 || b != 1)
+                    return null;
+                int[] result = stack.clone();
+                result[stack.length - 1] = stack[stack.length - 2];
+                result[stack.length - 2] = stack[stack.length - 1];
+                return result;
+            default:
+                return null;
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+package technology.unrelenting.clarke;
+
+import me.qmx.jitescript.internal.org.objectweb.asm.Type;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+
+// Resolves Java classes and their methods for calls out of Clarke code. Lookups are
+// cached for the life of the JVM, so every compilation in the process shares them, and the
+// methods of every class looked at can be saved to a file (--index) and loaded by
+// later runs, which then don't have to load or reflect on those classes at all.
+public class SymbolIndex {
+
+    private static final SymbolIndex SHARED = new SymbolIndex(ClassLoader.getSystemClassLoader());
+
+    private final ClassLoader classLoader;
+    private final Map<String, Class> classes = new ConcurrentHashMap<String, Class>();
+    private final Map<String, Class[]> descriptors = new ConcurrentHashMap<String, Class[]>();
+    // class name -> method name -> signatures (return type first), most arguments first
+    private final Map<String, Map<String, List<Class[]>>> staticMethods = new ConcurrentHashMap<String, Map<String, List<Class[]>>>();
+    // the same for public instance methods, without the receiver
+    private final Map<String, Map<String, List<Class[]>>> instanceMethods = new ConcurrentHashMap<String, Map<String, List<Class[]>>>();
+    private final Properties persisted = new Properties();
+    private volatile boolean modified;
+    // class loads and method listings that actually went to the JVM, for --stats
+    private final AtomicLong reflections = new AtomicLong();
+    private final AtomicLong reflectionNanos = new AtomicLong();
+
+    SymbolIndex(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    public static SymbolIndex shared() {
+        return SHARED;
+    }
+
+    public Class resolveClass(String name)
+        throws ClassNotFoundException {
+        Class klass = classes.get(name);
+        if (klass == null) {
+            long start = System.nanoTime();
+            // don't run static initializers of classes we only compile against
+            klass = Class.forName(name, false, classLoader);
+            classes.put(name, klass);
+            reflected(name, "class", start);
+        }
+        return klass;
+    }
+
+    // The public static methods called methodName that take at most maxArity arguments.
+    // Overloads taking more arguments come first, so the call uses as much of the stack as it can.
+    public List<Class[]> staticMethods(String className, String methodName, int maxArity)
+        throws ClassNotFoundException {
+        return overloads(staticMethods, "class.", true, className, methodName, maxArity);
+    }
+
+    // The public instance methods called methodName that take at most maxArity arguments besides
+    // the receiver, including inherited ones, in the same order.
+    public List<Class[]> instanceMethods(String className, String methodName, int maxArity)
+        throws ClassNotFoundException {
+        return overloads(instanceMethods, "instance.", false, className, methodName, maxArity);
+    }
+
+    private List<Class[]> overloads(Map<String, Map<String, List<Class[]>>> cache, String prefix, boolean isStatic,
+                                    String className, String methodName, int maxArity)
+        throws ClassNotFoundException {
+        Map<String, List<Class[]>> methods = cache.get(className);
+        if (methods == null) {
+            String indexed = persisted.getProperty(prefix + className);
+            methods = indexed != null ? decodeMethods(indexed) : reflectMethods(prefix, isStatic, className);
+            cache.put(className, methods);
+        }
+        List<Class[]> overloads = methods.get(methodName);
+        if (overloads == null)
+            return Collections.emptyList();
+        List<Class[]> result = new ArrayList<Class[]>(overloads.size());
+        for (Class[] signature : overloads)
+            if (signature.length - 1 <= maxArity)
+                result.add(signature);
+        return result;
+    }
+
+    private Map<String, List<Class[]>> reflectMethods(String prefix, boolean isStatic, String className)
+        throws ClassNotFoundException {
+        Set<String> entries = new LinkedHashSet<String>();
+        Class klass = resolveClass(className);
+        long start = System.nanoTime();
+        for (Method method : klass.getMethods())
+            if (Modifier.isStatic(method.getModifiers()) == isStatic && !method.isBridge())
+                entries.add(method.getName() + sig(method.getReturnType(), method.getParameterTypes()));
+        reflected(className, isStatic ? "static methods" : "instance methods", start);
+        String encoded = StringUtils.join(entries, ' ');
+        persisted.setProperty(prefix + className, encoded);
+        modified = true;
+        return decodeMethods(encoded);
+    }
+
+    private void reflected(String className, String members, long start) {
+        long nanos = System.nanoTime() - start;
+        reflections.incrementAndGet();
+        reflectionNanos.addAndGet(nanos);
+        CompilerEvents.reflected(className, members, nanos);
+    }
+
+    long reflections() {
+        return reflections.get();
+    }
+
+    long reflectionNanos() {
+        return reflectionNanos.get();
+    }
+
+    // space separated name(descriptor) entries
+    private Map<String, List<Class[]>> decodeMethods(String encoded)
+        throws ClassNotFoundException {
+        Map<String, List<Class[]>> methods = new HashMap<String, List<Class[]>>();
+        for (String entry : encoded.isEmpty() ? new String[0] : encoded.split(" ")) {
+            int sep = entry.indexOf('(');
+            String name = entry.substring(0, sep);
+            if (!methods.containsKey(name))
+                methods.put(name, new ArrayList<Class[]>());
+            methods.get(name).add(signature(entry.substring(sep)));
+        }
+        for (List<Class[]> overloads : methods.values()) {
+            Collections.sort(overloads, new Comparator<Class[]>() {
+                @Override public int compare(Class[] a, Class[] b) {
+                    return b.length - a.length;
+                }
+            });
+        }
+        return methods;
+    }
+
+    // the signature of a method descriptor, return type first
+    public Class[] signature(String descriptor)
+        throws ClassNotFoundException {
+        Class[] signature = descriptors.get(descriptor);
+        if (signature == null) {
+            Type[] argumentTypes = Type.getArgumentTypes(descriptor);
+            signature = new Class[argumentTypes.length + 1];
+            signature[0] = toClass(Type.getReturnType(descriptor));
+            for (int i = 0; i < argumentTypes.length; i++)
+                signature[i + 1] = toClass(argumentTypes[i]);
+            descriptors.put(descriptor, signature);
+        }
+        return signature;
+    }
+
+    private Class toClass(Type type)
+        throws ClassNotFoundException {
+        switch (type.getSort()) {
+            case Type.VOID: return void.class;
+            case Type.BOOLEAN: return boolean.class;
+            case Type.CHAR: return char.class;
+            case Type.BYTE: return byte.class;
+            case Type.SHORT: return short.class;
+            case Type.INT: return int.class;
+            case Type.LONG: return long.class;
+            case Type.FLOAT: return float.class;
+            case Type.DOUBLE: return double.class;
+            case Type.ARRAY: return resolveClass(type.getDescriptor().replace('/', '.'));
+            default: return resolveClass(type.getClassName());
+        }
+    }
+
+    // An index written for another classpath or JVM would point at methods that may not exist.
+    private static String classpathFingerprint() {
+        return System.getProperty("java.version") + " " + System.getProperty("java.class.path");
+    }
+
+    public void load(Path path)
+        throws IOException {
+        if (!Files.exists(path))
+            return;
+        Properties index = new Properties();
+        InputStream in = Files.newInputStream(path);
+        try {
+            index.load(in);
+        } finally {
+            in.close();
+        }
+        if (!classpathFingerprint().equals(index.getProperty("classpath")))
+            return;
+        index.remove("classpath");
+        persisted.putAll(index);
+    }
+
+    public void save(Path path)
+        throws IOException {
+        if (!modified && Files.exists(path))
+            return;
+        Properties index = new Properties();
+        index.putAll(persisted);
+        index.setProperty("classpath", classpathFingerprint());
+        OutputStream out = Files.newOutputStream(path);
+        try {
+            index.store(out, "Clarke symbol index");
+        } finally {
+            out.close();
+        }
+        modified = false;
+    }
+
+}
@@ -0,0 +1,146 @@
+package technology.unrelenting.clarke;
+
+import me.qmx.jitescript.internal.org.objectweb.asm.tree.LabelNode;
+
+import java.util.*;
+
+// The types of the values on the operand stack while a method is compiled.
+// Unlike java.util.Stack it is not synchronized and values can be looked at
+// without popping them; depth 0 is the top of the stack, index 0 the bottom.
+// It also remembers the stack at every label placed in the method, which becomes
+// the method's stack map frames; copies of a stack share those. Locals that stay live
+// across jumps besides the arguments, like loop counters, are pushed with pushLocal
+// so that the frames can list them.
+public class TypeStack {
+
+    public static class Frame {
+        final Class[] locals;
+        final Class[] stack;
+
+        Frame(Class[] locals, Class[] stack) {
+            this.locals = locals;
+            this.stack = stack;
+        }
+    }
+
+    private Class[] types;
+    private int size;
+    private final List<Class> locals;
+    private final Map<LabelNode, Frame> frames;
+
+    public TypeStack() {
+        types = new Class[16];
+        locals = new ArrayList<Class>();
+        frames = new HashMap<LabelNode, Frame>();
+    }
+
+    public TypeStack(TypeStack other) {
+        types = Arrays.copyOf(other.types, Math.max(other.size, 16));
+        size = other.size;
+        locals = new ArrayList<Class>(other.locals);
+        frames = other.frames;
+    }
+
+    public void push(Class type) {
+        if (size == types.length)
+            types = Arrays.copyOf(types, size * 2);
+        types[size++] = type;
+    }
+
+    public Class pop() {
+        if (size == 0)
+            throw new EmptyStackException();
+        Class type = types[--size];
+        types[size] = null;
+        return type;
+    }
+
+    public void drop(int count) {
+        if (count > size)
+            throw new EmptyStackException();
+        Arrays.fill(types, size - count, size, null);
+        size -= count;
+    }
+
+    public Class peek() {
+        return peek(0);
+    }
+
+    public Class peek(int depth) {
+        if (depth >= size)
+            throw new EmptyStackException();
+        return types[size - 1 - depth];
+    }
+
+    public Class get(int index) {
+        return types[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // the top count types, bottom first
+    public Class[] top(int count) {
+        if (count > size)
+            throw new EmptyStackException();
+        return Arrays.copyOfRange(types, size - count, size);
+    }
+
+    // the bottom count types, bottom first
+    public Class[] bottom(int count) {
+        if (count > size)
+            throw new EmptyStackException();
+        return Arrays.copyOf(types, count);
+    }
+
+    public void pushAll(Class[] pushed) {
+        for (Class type : pushed)
+            push(type);
+    }
+
+    // locals are allocated in order, the first one in the slot right after the arguments
+    public void pushLocal(Class type) {
+        locals.add(type);
+    }
+
+    public void popLocal() {
+        locals.remove(locals.size() - 1);
+    }
+
+    // the stack at label is the current one with `above` pushed on top
+    public void mark(LabelNode label, Class... above) {
+        Class[] stack = Arrays.copyOf(types, size + above.length);
+        System.arraycopy(above, 0, stack, size, above.length);
+        frames.put(label, new Frame(locals.toArray(new Class[locals.size()]), stack));
+    }
+
+    // takes over the labels of code compiled on its own stack, which runs with `below` under it
+    // and with the locals of this stack live
+    public void markAll(TypeStack inner, Class[] below) {
+        Class[] outerLocals = locals.toArray(new Class[locals.size()]);
+        for (Map.Entry<LabelNode, Frame> entry : inner.frames.entrySet()) {
+            Frame frame = entry.getValue();
+            frames.put(entry.getKey(), new Frame(concat(outerLocals, frame.locals), concat(below, frame.stack)));
+        }
+    }
+
+    private static Class[] concat(Class[] first, Class[] second) {
+        Class[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    public Map<LabelNode, Frame> frames() {
+        return frames;
+    }
+
+    @Override public String toString() {
+        return Arrays.toString(Arrays.copyOf(types, size));
+    }
+
+}
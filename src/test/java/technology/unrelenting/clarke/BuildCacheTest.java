@@ -0,0 +1,86 @@
+package technology.unrelenting.clarke;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class BuildCacheTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String name, String source) throws IOException {
+        Path path = folder.getRoot().toPath().resolve(name);
+        Files.write(path, source.getBytes(Charset.defaultCharset()));
+        return path;
+    }
+
+    private Set<String> build(List<Path> paths) throws CompilerException, IOException {
+        BuildCache cache = BuildCache.open(folder.getRoot().toPath().resolve("cache"));
+        return compiledClassNames(Compiler.compileFiles(paths, cache));
+    }
+
+    private Set<String> buildWithoutInlining(List<Path> paths) throws CompilerException, IOException {
+        BuildCache cache = BuildCache.open(folder.getRoot().toPath().resolve("cache"));
+        CompilerOptions options = new CompilerOptions();
+        options.inlineLimit = 0;
+        return compiledClassNames(Compiler.compileFiles(paths, options, cache, null));
+    }
+
+    private static Set<String> compiledClassNames(Map<String, byte[]> classes) {
+        return new HashSet<String>(classes.keySet());
+    }
+
+    @Test public void testIncrementalBuild() throws CompilerException, IOException {
+        List<Path> paths = Arrays.asList(
+                write("Caller.clarke", "class Caller; twice ∷ int → int = Callee.double; other ∷ → int = 1;"),
+                write("Callee.clarke", "class Callee; double ∷ int → int = 2 *;"),
+                write("Unrelated.clarke", "class Unrelated; hi = \"Hello\" println;"));
+        assertEquals(new HashSet<String>(Arrays.asList("Caller", "Callee", "Unrelated")), buildWithoutInlining(paths));
+        assertEquals(Collections.<String>emptySet(), buildWithoutInlining(paths));
+
+        write("Callee.clarke", "class Callee; double ∷ int → int = dup +;");
+        assertEquals(Collections.singleton("Callee"), buildWithoutInlining(paths));
+
+        write("Callee.clarke", "class Callee; double ∷ long → long = dup +;");
+        assertEquals(new HashSet<String>(Arrays.asList("Caller", "Callee")), buildWithoutInlining(paths));
+        assertEquals(Collections.<String>emptySet(), buildWithoutInlining(paths));
+    }
+
+    @Test public void testCachedSignaturesAreUsedForCalls() throws CompilerException, IOException {
+        List<Path> paths = Arrays.asList(
+                write("One.clarke", "class One; hello ∷ → java.lang.String = \"One\";"),
+                write("Two.clarke", "class Two; hello ∷ → java.lang.String = \"Two\";"));
+        build(paths);
+        write("Two.clarke", "class Two; hello ∷ → java.lang.String = One.hello;");
+        assertEquals(Collections.singleton("Two"), build(paths));
+        BuildCache cache = BuildCache.open(folder.getRoot().toPath().resolve("cache"));
+        assertEquals(Collections.singletonMap("One", ClassCache.hash(cache.signatures("One"))), cache.dependencies("Two"));
+    }
+
+    @Test public void testEvaluatedCallsDependOnCalleeBody() throws CompilerException, IOException {
+        List<Path> paths = Arrays.asList(
+                write("Caller.clarke", "class Caller; four ∷ → int = 2 Callee.double;"),
+                write("Callee.clarke", "class Callee; double ∷ int → int = 2 *;"));
+        build(paths);
+        write("Callee.clarke", "class Callee; double ∷ int → int = 3 *;");
+        assertEquals(new HashSet<String>(Arrays.asList("Caller", "Callee")), build(paths));
+    }
+
+    @Test public void testInlinedCallsDependOnCalleeBody() throws CompilerException, IOException {
+        List<Path> paths = Arrays.asList(
+                write("Caller.clarke", "class Caller; twice ∷ int → int = Callee.double;"),
+                write("Callee.clarke", "class Callee; double ∷ int → int = 2 *;"));
+        build(paths);
+        write("Callee.clarke", "class Callee; double ∷ int → int = dup +;");
+        assertEquals(new HashSet<String>(Arrays.asList("Caller", "Callee")), build(paths));
+    }
+
+}
@@ -0,0 +1,49 @@
+package technology.unrelenting.clarke;
+
+import org.junit.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ClassCacheTest {
+
+    @Test public void testEntryPoints() throws Throwable {
+        ClassCache cache = new ClassCache();
+        CompiledProgram program = cache.load("class MathStuff; gcd ∷ int int → int = { swap over % } { dup 0 ≠ } while pop;");
+        MethodHandle gcd = program.entryPoint("MathStuff", "gcd");
+        assertEquals(2, (int) gcd.invokeExact(6, 10));
+
+        Map<String, MethodHandle> entryPoints = program.entryPoints();
+        assertTrue(entryPoints.containsKey("MathStuff.gcd"));
+        assertEquals(1, entryPoints.get("MathStuff.gcd").invoke(10, 21));
+    }
+
+    @Test public void testCrossClassCalls() throws Throwable {
+        ClassCache cache = new ClassCache();
+        CompiledProgram program = cache.load("class Two; hello ∷ → java.lang.String = One.hello; class One; hello ∷ → java.lang.String = \"One\";");
+        assertEquals("One", (String) program.entryPoint("Two", "hello").invokeExact());
+    }
+
+    @Test public void testSameSourceIsCompiledOnce() throws CompilerException {
+        ClassCache cache = new ClassCache();
+        String source = "class TestClass; hi ∷ → int = 2 2 *;";
+        CompiledProgram first = cache.load(source);
+        assertSame(first, cache.load(source));
+        assertNotSame(first, cache.load(source + " bye ∷ → int = 1;"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test public void testEviction() throws CompilerException {
+        String first = "class TestClass; a ∷ → int = 1;";
+        String second = "class TestClass; b ∷ → int = 2;";
+        ClassCache cache = new ClassCache(1);
+        cache.load(first);
+        cache.load(second);
+        assertEquals(1, cache.size());
+        assertFalse(cache.contains(first));
+        assertTrue(cache.contains(second));
+    }
+
+}
@@ -0,0 +1,152 @@
+package technology.unrelenting.clarke;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import me.qmx.jitescript.JiteClass;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+
+import static me.qmx.jitescript.util.CodegenUtils.c;
+import static org.junit.Assert.*;
+
+public class CompileFilesTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<Path> writeProgram(int files) throws IOException {
+        List<Path> paths = new ArrayList<Path>();
+        for (int i = 0; i < files; i++) {
+            String source = "class File" + i + ";\n"
+                + "gcd ∷ int int → int = { swap over % } { dup 0 ≠ } while pop;\n"
+                + "check ∷ int → java.lang.String = 15 ≥ { \"short\" } { \"OK\" } if;\n"
+                + "next ∷ int → int = File" + ((i + 1) % files) + ".twice 1 +;\n"
+                + "twice ∷ int → int = 2 *;\n"
+                + "class Other" + i + "; hi = \"Hello\" println;\n";
+            Path path = folder.getRoot().toPath().resolve("File" + i + ".clarke");
+            Files.write(path, source.getBytes(Charset.defaultCharset()));
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    @Test public void testParallelBuildIsByteIdentical() throws CompilerException, IOException {
+        List<Path> paths = writeProgram(32);
+        Map<String, byte[]> sequential = Compiler.compileFiles(paths, null);
+        Map<String, byte[]> parallel = Compiler.compileFiles(paths, new CompilerOptions(), null, new ForkJoinPool(4));
+        assertEquals(64, sequential.size());
+        assertEquals(sequential.keySet(), parallel.keySet());
+        for (String className : sequential.keySet())
+            assertArrayEquals(sequential.get(className), parallel.get(className));
+    }
+
+    // parse trees are dropped while classes are generated, but not before the classes that inline from them are done
+    @Test public void testSameOutputAsOneSource() throws CompilerException, IOException {
+        List<Path> paths = writeProgram(4);
+        StringBuilder source = new StringBuilder();
+        for (Path path : paths)
+            source.append(new String(Files.readAllBytes(path), Charset.defaultCharset()));
+        Map<String, byte[]> compiled = Compiler.compileFiles(paths, null);
+        List<JiteClass> classes = Compiler.compileClasses(source.toString());
+        assertEquals(classes.size(), compiled.size());
+        for (JiteClass jiteClass : classes)
+            assertArrayEquals(jiteClass.toBytes(), compiled.get(c(jiteClass.getClassName())));
+    }
+
+    @Test public void testJarOutput() throws Exception {
+        Path source = folder.getRoot().toPath().resolve("Hello.clarke");
+        Files.write(source, ("class Hello; main ∷ java.lang.String[] = pop Greeting.text println;\n"
+                + "class Greeting; text ∷ → java.lang.String = \"Hello\";\n").getBytes(Charset.defaultCharset()));
+        Path jar = folder.getRoot().toPath().resolve("hello.jar");
+        Compiler.main(new String[] { "--jar", jar.toString(), source.toString() });
+
+        JarFile jarFile = new JarFile(jar.toFile());
+        try {
+            assertEquals("Hello", jarFile.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS));
+            assertNotNull(jarFile.getEntry("Hello.class"));
+            assertNotNull(jarFile.getEntry("Greeting.class"));
+        } finally {
+            jarFile.close();
+        }
+        URLClassLoader loader = new URLClassLoader(new URL[] { jar.toUri().toURL() }, getClass().getClassLoader());
+        assertEquals("Hello", loader.loadClass("Greeting").getMethod("text").invoke(null));
+        loader.close();
+    }
+
+    @Test public void testCdsLauncher() throws Exception {
+        Assume.assumeTrue(!System.getProperty("java.specification.version").startsWith("1.")
+                && Integer.parseInt(System.getProperty("java.specification.version")) >= 13);
+        Path source = folder.getRoot().toPath().resolve("Hello.clarke");
+        Files.write(source, "class Hello; main ∷ java.lang.String[] = length println;\n".getBytes(Charset.defaultCharset()));
+        Path jar = folder.getRoot().toPath().resolve("hello.jar");
+        Compiler.main(new String[] { "--jar", jar.toString(), "--cds", source.toString() });
+        assertTrue(Files.exists(folder.getRoot().toPath().resolve("hello.jsa")));
+
+        Process process = new ProcessBuilder(folder.getRoot().toPath().resolve("hello").toString(), "a", "b").start();
+        BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        assertEquals("2", output.readLine());
+        assertEquals(0, process.waitFor());
+    }
+
+    @Test public void testStats() throws CompilerException, IOException {
+        List<Path> paths = writeProgram(4);
+        CompilerOptions options = new CompilerOptions();
+        options.stats = new CompilerStats();
+        Compiler.compileFiles(paths, options, null, null);
+        assertEquals(4, options.stats.count(CompilerStats.READ));
+        assertEquals(4, options.stats.count(CompilerStats.PARSE));
+        assertEquals(8, options.stats.count(CompilerStats.SIGNATURES));
+        assertEquals(8, options.stats.count(CompilerStats.GENERATE));
+        assertEquals(8, options.stats.count(CompilerStats.BYTECODE));
+        assertTrue(options.stats.nanos(CompilerStats.PARSE) > 0);
+        assertTrue(options.stats.report().contains("bytecode"));
+    }
+
+    @Test public void testFlightRecorderEvents() throws Exception {
+        Assume.assumeTrue(!System.getProperty("java.specification.version").startsWith("1."));
+        List<Path> paths = writeProgram(2);
+        Path file = folder.getRoot().toPath().resolve("build.jfr");
+        Recording recording = new Recording();
+        recording.enable("technology.unrelenting.clarke.Parse");
+        recording.enable("technology.unrelenting.clarke.Class");
+        recording.enable("technology.unrelenting.clarke.Method");
+        recording.start();
+        Compiler.compileFiles(paths, null);
+        recording.stop();
+        recording.dump(file);
+        recording.close();
+
+        int parsed = 0, methods = 0;
+        long bytes = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            String type = event.getEventType().getName();
+            if (type.endsWith(".Parse"))
+                parsed++;
+            else if (type.endsWith(".Method") && event.getString("className").equals("File0"))
+                methods++;
+            else if (type.endsWith(".Class") && event.getString("className").equals("File0"))
+                bytes = event.getInt("bytes");
+        }
+        assertEquals(2, parsed);
+        assertEquals(4, methods);
+        assertTrue(bytes > 0);
+    }
+
+}
@@ -0,0 +1,104 @@
+package technology.unrelenting.clarke;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CompilerDaemonTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(Path path, String source) throws IOException {
+        Files.write(path, source.getBytes(Charset.defaultCharset()));
+    }
+
+    @Test public void testRequests() throws Exception {
+        Path directory = folder.newFolder("project").toPath();
+        write(directory.resolve("Hello.clarke"), "class Hello; hi = \"Hello\" println;\n");
+        final CompilerDaemon daemon = new CompilerDaemon(new CompilerOptions(), folder.getRoot().toPath());
+        final ServerSocket server = CompilerDaemon.listen(0);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    daemon.serve(server);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        thread.start();
+        try {
+            // relative paths are resolved against the directory of the client
+            assertTrue(CompilerDaemon.send(server.getLocalPort(), directory, new String[] { "--cache", "cache", "Hello.clarke" }));
+            assertTrue(Files.exists(directory.resolve("Hello.class")));
+            assertTrue(Files.isDirectory(directory.resolve("cache")));
+            assertFalse(CompilerDaemon.send(server.getLocalPort(), directory, new String[] { "--target", "5", "Hello.clarke" }));
+            // a client that sends nothing doesn't stop the daemon, and neither does a missing file
+            new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort()).close();
+            assertFalse(CompilerDaemon.send(server.getLocalPort(), directory, new String[] { "Missing.clarke" }));
+            assertTrue(CompilerDaemon.send(server.getLocalPort(), directory, new String[] { "Hello.clarke" }));
+        } finally {
+            server.close();
+            thread.join();
+        }
+    }
+
+    @Test public void testWatch() throws Exception {
+        Path sources = folder.newFolder("src").toPath();
+        Path output = folder.newFolder("out").toPath();
+        write(sources.resolve("First.clarke"), "class First; one ∷ → int = 1;\n");
+        CompilerOptions options = new CompilerOptions();
+        options.watchDirectories.add(sources);
+        options.cacheDirectory = folder.getRoot().toPath().resolve("cache");
+        final CompilerDaemon daemon = new CompilerDaemon(options, output);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    daemon.watch();
+                } catch (InterruptedException ex) {
+                    // stopped
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        thread.start();
+        try {
+            Path first = output.resolve("First.class");
+            waitFor(first);
+            byte[] before = Files.readAllBytes(first);
+
+            Files.createDirectory(sources.resolve("more"));
+            write(sources.resolve("more").resolve("Second.clarke"), "class Second; two ∷ → int = 2;\n");
+            waitFor(output.resolve("Second.class"));
+
+            write(sources.resolve("First.clarke"), "class First; one ∷ → int = 1; three ∷ → int = 3;\n");
+            long deadline = System.currentTimeMillis() + 10000;
+            while (Arrays.equals(before, Files.readAllBytes(first)) && System.currentTimeMillis() < deadline)
+                Thread.sleep(20);
+            assertFalse(Arrays.equals(before, Files.readAllBytes(first)));
+        } finally {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    private static void waitFor(Path path) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!Files.exists(path) && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertTrue(path + " was not written", Files.exists(path));
+    }
+
+}
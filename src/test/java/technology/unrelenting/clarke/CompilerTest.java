@@ -1,12 +1,28 @@
 package technology.unrelenting.clarke;
 
 import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.internal.org.objectweb.asm.ClassReader;
+import me.qmx.jitescript.internal.org.objectweb.asm.Opcodes;
+import me.qmx.jitescript.internal.org.objectweb.asm.tree.AbstractInsnNode;
+import me.qmx.jitescript.internal.org.objectweb.asm.tree.ClassNode;
+import me.qmx.jitescript.internal.org.objectweb.asm.tree.FrameNode;
+import me.qmx.jitescript.internal.org.objectweb.asm.tree.MethodNode;
 import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import static me.qmx.jitescript.util.CodegenUtils.c;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class CompilerTest {
 
@@ -21,6 +37,28 @@ public class CompilerTest {
         return new DynamicClassLoader().define(Compiler.compileClasses("class TestClass; " + code).get(0));
     }
 
+    private Class eval(String code, CompilerOptions options) throws CompilerException {
+        return new DynamicClassLoader().define(Compiler.compileClasses("class TestClass; " + code, options).get(0));
+    }
+
+    private static CompilerOptions optimizationLevel(int level) {
+        CompilerOptions options = new CompilerOptions();
+        options.optimizationLevel = level;
+        return options;
+    }
+
+    private static List<Integer> opcodes(String code, CompilerOptions options, String methodName) throws CompilerException {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(Compiler.compileClasses("class TestClass; " + code, options).get(0).toBytes()).accept(classNode, 0);
+        List<Integer> opcodes = new ArrayList<Integer>();
+        for (Object method : classNode.methods)
+            if (((MethodNode) method).name.equals(methodName))
+                for (AbstractInsnNode insn : ((MethodNode) method).instructions.toArray())
+                    if (insn.getOpcode() >= 0)
+                        opcodes.add(insn.getOpcode());
+        return opcodes;
+    }
+
     private DynamicClassLoader evalClasses(String code) throws CompilerException {
         DynamicClassLoader classLoader = new DynamicClassLoader();
         for (JiteClass jiteClass : Compiler.compileClasses(code))
@@ -71,6 +109,51 @@ public class CompilerTest {
         assertEquals(true, testClass.getMethod("bo", boolean.class, boolean.class).invoke(null, false, true));
     }
 
+    @Test public void testComparisonBranches() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        String code = "clamp ∷ int → int = dup 10 > { pop 10 } when;"
+            + "countDown ∷ long → long = 0L swap { 1L - swap 1L + swap } { dup 0L > } while pop;"
+            + "sign ∷ double → int = dup 0.0 < { 0.0 > { 0 } { 1 } if } { pop 0 1 - } if;"
+            + "less ∷ float float → bool = <;"
+            + "notLess ∷ double double → bool = < ¬;"
+            + "same ∷ bool bool → bool = ==;"
+            + "inRange ∷ int → bool = dup 0 ≥ swap 100 < ∧;"
+            + "nanLess ∷ → bool = 0.0 0.0 / 1.0 <;"
+            + "nanGreater ∷ → bool = 0.0f 0.0f / 1.0f ≥;"
+            + "nanDiffers ∷ → bool = 0.0 0.0 / dup ≠;"
+            + "nanBranch ∷ → int = 0.0 0.0 / 1.0 < { 1 } { 2 } if;";
+        for (int level = 0; level <= 2; level++) {
+            Class testClass = eval(code, optimizationLevel(level));
+            assertEquals(7, testClass.getMethod("clamp", int.class).invoke(null, 7));
+            assertEquals(10, testClass.getMethod("clamp", int.class).invoke(null, 11));
+            assertEquals(5L, testClass.getMethod("countDown", long.class).invoke(null, 5L));
+            assertEquals(-1, testClass.getMethod("sign", double.class).invoke(null, -2.0));
+            assertEquals(1, testClass.getMethod("sign", double.class).invoke(null, 2.0));
+            assertEquals(0, testClass.getMethod("sign", double.class).invoke(null, Double.NaN));
+            assertEquals(false, testClass.getMethod("less", float.class, float.class).invoke(null, Float.NaN, 1.0f));
+            assertEquals(false, testClass.getMethod("less", float.class, float.class).invoke(null, 1.0f, Float.NaN));
+            assertEquals(true, testClass.getMethod("notLess", double.class, double.class).invoke(null, Double.NaN, 1.0));
+            assertEquals(true, testClass.getMethod("same", boolean.class, boolean.class).invoke(null, false, false));
+            assertEquals(false, testClass.getMethod("same", boolean.class, boolean.class).invoke(null, true, false));
+            assertEquals(true, testClass.getMethod("inRange", int.class).invoke(null, 0));
+            assertEquals(false, testClass.getMethod("inRange", int.class).invoke(null, 100));
+            // folded at compile time from -O1 on, with the same results
+            assertEquals(false, testClass.getMethod("nanLess").invoke(null));
+            assertEquals(false, testClass.getMethod("nanGreater").invoke(null));
+            assertEquals(true, testClass.getMethod("nanDiffers").invoke(null));
+            assertEquals(1, testClass.getMethod("nanBranch").invoke(null));
+        }
+        // conditions go straight into the jump, booleans are combined without branches
+        List<Integer> clamp = opcodes(code, optimizationLevel(1), "clamp");
+        assertTrue(clamp.contains(Opcodes.IF_ICMPLE));
+        assertFalse(clamp.contains(Opcodes.IFEQ) || clamp.contains(Opcodes.ICONST_1));
+        List<Integer> countDown = opcodes(code, optimizationLevel(1), "countDown");
+        assertTrue(countDown.contains(Opcodes.LCMP) && countDown.contains(Opcodes.IFLE));
+        assertFalse(countDown.contains(Opcodes.IFEQ));
+        assertEquals(Arrays.asList(Opcodes.ILOAD, Opcodes.ILOAD, Opcodes.IXOR, Opcodes.ICONST_1, Opcodes.IXOR, Opcodes.IRETURN),
+                opcodes(code, optimizationLevel(1), "same"));
+        assertTrue(opcodes(code, optimizationLevel(1), "inRange").contains(Opcodes.IAND));
+    }
+
     @Test public void testControlFlow() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
         Class testClass = eval("cf ∷ bool → int = { 2 3 + } { 2 3 * } if;");
         assertEquals(6, testClass.getMethod("cf", boolean.class).invoke(null, true));
@@ -108,6 +191,75 @@ public class CompilerTest {
         assertEquals(100, testClass.getMethod("readdec", String.class).invoke(null, "100"));
     }
 
+    @Test public void testJavaCallConversions() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        String code = "widen ∷ int long → long = java.lang.Math.max;"
+            + "box ∷ int → java.lang.String = java.util.Objects.toString;"
+            + "unbox ∷ int → int = java.lang.Integer.valueOf java.lang.Math.abs;";
+        Class testClass = eval(code);
+        assertEquals(7L, testClass.getMethod("widen", int.class, long.class).invoke(null, 7, 3L));
+        assertEquals("42", testClass.getMethod("box", int.class).invoke(null, 42));
+        assertEquals(5, testClass.getMethod("unbox", int.class).invoke(null, -5));
+        List<Integer> opcodes = opcodes(code, optimizationLevel(1), "widen");
+        assertTrue(opcodes.contains(Opcodes.INVOKEDYNAMIC));
+        assertFalse(opcodes.contains(Opcodes.INVOKESTATIC));
+
+        // Java 6 class files call the method directly, which only works without conversions
+        CompilerOptions java6 = new CompilerOptions();
+        java6.target = 6;
+        assertEquals(Arrays.asList(Opcodes.ALOAD, Opcodes.INVOKESTATIC, Opcodes.IRETURN),
+                opcodes("parse ∷ java.lang.String → int = java.lang.Integer.parseInt;", java6, "parse"));
+    }
+
+    @Test public void testInstanceCalls() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        String code = "len ∷ java.lang.String → int = #length;"
+            + "find ∷ java.lang.String → int = 108 #indexOf;"
+            + "fields ∷ java.lang.String → int = \",\" #split length;"
+            + "none ∷ → int = java.util.Collections.emptyList #size;";
+        for (int target : new int[] { 6, 8 }) {
+            CompilerOptions options = new CompilerOptions();
+            options.target = target;
+            Class testClass = eval(code, options);
+            assertEquals(5, testClass.getMethod("len", String.class).invoke(null, "hello"));
+            assertEquals(2, testClass.getMethod("find", String.class).invoke(null, "hello"));
+            assertEquals(3, testClass.getMethod("fields", String.class).invoke(null, "a,b,c"));
+            assertEquals(0, testClass.getMethod("none").invoke(null));
+        }
+    }
+
+    @Test public void testJavaCallsNamedLikeKeywords() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        Class testClass = eval("between ∷ int int → int = java.util.stream.IntStream.range #sum;"
+            + "loops ∷ int → int = 0 swap { index + } times;");
+        assertEquals(14, testClass.getMethod("between", int.class, int.class).invoke(null, 2, 6));
+        assertEquals(10, testClass.getMethod("loops", int.class).invoke(null, 5));
+
+        // IntStream is an interface, so Java 6 class files can't call its static methods
+        CompilerOptions java7 = new CompilerOptions();
+        java7.target = 7;
+        testClass = eval("between ∷ int int → int = java.util.stream.IntStream.range #sum;", java7);
+        assertEquals(14, testClass.getMethod("between", int.class, int.class).invoke(null, 2, 6));
+        CompilerOptions java6 = new CompilerOptions();
+        java6.target = 6;
+        try {
+            eval("between ∷ int int → int = java.util.stream.IntStream.range #sum;", java6);
+            fail("static interface methods need invokedynamic");
+        } catch (CompilerException expected) {
+            assertTrue(expected.getMessage().contains("--target 7"));
+        }
+    }
+
+    @Test(expected = CompilerException.class)
+    public void testJavaCallMustFitStack() throws CompilerException {
+        eval("bad ∷ java.lang.String → int = java.lang.Math.abs;");
+    }
+
+    // widening needs invokedynamic
+    @Test(expected = CompilerException.class)
+    public void testJava6CallMustMatchStack() throws CompilerException {
+        CompilerOptions java6 = new CompilerOptions();
+        java6.target = 6;
+        eval("widen ∷ int long → long = java.lang.Math.max;", java6);
+    }
+
     @Test public void testMultipleClasses() throws CompilerException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
         DynamicClassLoader classLoader = evalClasses("class One; hello ∷ → java.lang.String = \"One\"; class Two; hello ∷ → java.lang.String = \"Two\";");
         assertEquals("One", classLoader.loadClass("One").getMethod("hello").invoke(null));
@@ -120,4 +272,354 @@ public class CompilerTest {
         assertEquals("One", classLoader.loadClass("Two").getMethod("hello").invoke(null));
     }
 
+    @Test public void testPeepholeOptimizer() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        String code = "ar ∷ long → long = dup * 5 swap - dup swap swap pop;"
+            + "cf ∷ bool → int = { 2 3 + } { 2 3 * } if;"
+            + "gcd ∷ int int → int = { swap over % } { dup 0 ≠ } while pop;";
+        for (int level = 0; level <= 2; level++) {
+            Class testClass = eval(code, optimizationLevel(level));
+            assertEquals(-95L, testClass.getMethod("ar", long.class).invoke(null, 10L));
+            assertEquals(6, testClass.getMethod("cf", boolean.class).invoke(null, true));
+            assertEquals(5, testClass.getMethod("cf", boolean.class).invoke(null, false));
+            assertEquals(2, testClass.getMethod("gcd", int.class, int.class).invoke(null, 6, 10));
+        }
+        int unoptimized = Compiler.compileClasses("class TestClass; " + code, optimizationLevel(0)).get(0).toBytes().length;
+        int optimized = Compiler.compileClasses("class TestClass; " + code, optimizationLevel(2)).get(0).toBytes().length;
+        assertTrue(optimized < unoptimized);
+    }
+
+    @Test public void testConstantFolding() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        String code = "ar ∷ → int = 2 2 * 3 +;"
+            + "cf ∷ int → int = true { 1 + } { 2 * } if;"
+            + "cmp ∷ → bool = 2L 3 ≥ ¬ true ==;"
+            + "fact ∷ int → int = dup 1 ≤ { dup 1 - fact * } { pop 1 } if;"
+            + "tenfact ∷ → int = 10 fact;"
+            + "spin ∷ int → int = { 1 + } { true } while;"
+            + "spun ∷ → int = 0 spin;"
+            + "div ∷ → int = 1 0 /;";
+        for (int level = 0; level <= 2; level++) {
+            Class testClass = eval(code, optimizationLevel(level));
+            assertEquals(7, testClass.getMethod("ar").invoke(null));
+            assertEquals(20, testClass.getMethod("cf", int.class).invoke(null, 10));
+            assertEquals(true, testClass.getMethod("cmp").invoke(null));
+            assertEquals(3628800, testClass.getMethod("tenfact").invoke(null));
+            try {
+                testClass.getMethod("div").invoke(null);
+                assertTrue(false);
+            } catch (InvocationTargetException ex) {
+                assertTrue(ex.getCause() instanceof ArithmeticException);
+            }
+        }
+        assertTrue(opcodes(code, optimizationLevel(0), "ar").contains(Opcodes.IMUL));
+        assertEquals(2, opcodes(code, optimizationLevel(1), "ar").size());
+        assertEquals(2, opcodes(code, optimizationLevel(1), "cmp").size());
+        assertFalse(opcodes(code, optimizationLevel(1), "cf").contains(Opcodes.IADD));
+        assertFalse(opcodes(code, optimizationLevel(1), "tenfact").contains(Opcodes.INVOKESTATIC));
+        // evaluating spin runs out of budget, so it stays a call
+        CompilerOptions noInlining = optimizationLevel(1);
+        noInlining.inlineLimit = 0;
+        assertTrue(opcodes(code, noInlining, "spun").contains(Opcodes.INVOKESTATIC));
+    }
+
+    @Test public void testConstantBranchesAreChecked() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        for (String code : Arrays.asList("bad ∷ → int = true { 1 2 } { 1 } if;", "bad ∷ → int = false { 1 } { 1 2.0 } if;",
+                "bad ∷ → int = 1 false { 2 } when;", "bad ∷ → int = 1 false { pop } unless;")) {
+            for (int level = 0; level <= 2; level++) {
+                try {
+                    eval(code, optimizationLevel(level));
+                    fail(code + " compiled at -O" + level);
+                } catch (CompilerException ex) {
+                    assertTrue(ex.getMessage().contains("must leave the same types"));
+                }
+            }
+        }
+        // the branch that isn't taken is not compiled, nor is what it calls
+        String code = "twice ∷ a → a = dup +;"
+            + "one ∷ → int = false { 1 } { 2 twice } if;";
+        for (int level = 0; level <= 2; level++)
+            assertEquals(1, eval(code, optimizationLevel(level)).getMethod("one").invoke(null));
+        assertEquals(Arrays.asList(Opcodes.ICONST_1, Opcodes.IRETURN), opcodes(code, optimizationLevel(1), "one"));
+        CompilerOptions noInlining = optimizationLevel(1);
+        noInlining.inlineLimit = 0;
+        for (java.lang.reflect.Method method : eval(code, noInlining).getDeclaredMethods())
+            assertFalse(method.getName().startsWith("twice"));
+    }
+
+    @Test public void testInlining() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        String code = "multiplyAndSquare ∷ int int → int = * dup *;"
+            + "inc ∷ int int → int = multiplyAndSquare 1 +;"
+            + "fact ∷ int → int = dup 1 ≤ { dup 1 - fact * } { pop 1 } if;"
+            + "factorial ∷ int → int = fact;"
+            + "greet ∷ java.lang.String = println;"
+            + "hello = \"Hello\" greet;";
+        for (int level = 0; level <= 2; level++) {
+            Class testClass = eval(code, optimizationLevel(level));
+            assertEquals(37, testClass.getMethod("inc", int.class, int.class).invoke(null, 2, 3));
+            assertEquals(36, testClass.getMethod("multiplyAndSquare", int.class, int.class).invoke(null, 2, 3));
+            assertEquals(120, testClass.getMethod("factorial", int.class).invoke(null, 5));
+            testClass.getMethod("hello").invoke(null);
+        }
+        assertTrue(opcodes(code, optimizationLevel(0), "inc").contains(Opcodes.INVOKESTATIC));
+        assertFalse(opcodes(code, optimizationLevel(1), "inc").contains(Opcodes.INVOKESTATIC));
+        assertFalse(opcodes(code, optimizationLevel(1), "hello").contains(Opcodes.INVOKESTATIC));
+        assertTrue(opcodes(code, optimizationLevel(1), "factorial").contains(Opcodes.INVOKESTATIC));
+        CompilerOptions noInlining = optimizationLevel(1);
+        noInlining.inlineLimit = 0;
+        assertTrue(opcodes(code, noInlining, "inc").contains(Opcodes.INVOKESTATIC));
+    }
+
+    @Test public void testInliningUnderOtherValues() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        String code = "choose ∷ int → int = dup 0 > { 1 } { 2 } if +;"
+            + "picked ∷ long int → long = choose pop;"
+            + "sum ∷ int[] → int = 0 { + } fold;"
+            + "summed ∷ int[] → int = 1 swap sum +;"
+            + "counted ∷ double int → double = choose pop;";
+        for (int level = 0; level <= 2; level++) {
+            Class testClass = eval(code, optimizationLevel(level));
+            assertEquals(7L, testClass.getMethod("picked", long.class, int.class).invoke(null, 7L, 4));
+            assertEquals(7, testClass.getMethod("summed", int[].class).invoke(null, new int[] { 1, 2, 3 }));
+            assertEquals(2.5, testClass.getMethod("counted", double.class, int.class).invoke(null, 2.5, -3));
+        }
+        assertFalse(opcodes(code, optimizationLevel(1), "summed").contains(Opcodes.INVOKESTATIC));
+    }
+
+    @Test public void testTailCalls() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        String code = "count ∷ int int → int = dup 0 == { 1 - swap 1 + swap count } { pop } if;"
+            + "down ∷ int → int = dup 0 > { 1 - down } when;"
+            + "halve ∷ double int → double = dup 0 == { 1 - swap 2.0 / swap halve } { pop } if;"
+            + "spin ∷ int = dup 0 > { pop } { 1 - spin } if;";
+        for (int level = 0; level <= 2; level++) {
+            Class testClass = eval(code, optimizationLevel(level));
+            assertEquals(1000000, testClass.getMethod("count", int.class, int.class).invoke(null, 0, 1000000));
+            assertEquals(0, testClass.getMethod("down", int.class).invoke(null, 1000000));
+            assertEquals(1.0, testClass.getMethod("halve", double.class, int.class).invoke(null, 1024.0, 10));
+            testClass.getMethod("spin", int.class).invoke(null, 1000000);
+            for (String method : Arrays.asList("count", "down", "halve", "spin"))
+                assertFalse(opcodes(code, optimizationLevel(level), method).contains(Opcodes.INVOKESTATIC));
+        }
+    }
+
+    @Test public void testGenericMethods() throws CompilerException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        String code = "square ∷ a → a = dup *;"
+            + "sum ∷ a[] a → a = { + } fold;"
+            + "first ∷ a[] → a = 0 @;"
+            + "pow ∷ a int → a = dup 1 == { 1 - over swap pow * } { pop } if;"
+            + "squareInt ∷ int → int = square;"
+            + "squareLong ∷ long → long = square;"
+            + "squareDouble ∷ double → double = square;"
+            + "sumLongs ∷ long[] → long = 0L sum;"
+            + "firstWord ∷ java.lang.String[] → java.lang.String = first;"
+            + "cube ∷ double → double = 3 pow;"
+            + "seventh ∷ long → long = 7 pow;";
+        for (int level = 0; level <= 2; level++) {
+            Class testClass = eval(code, optimizationLevel(level));
+            assertEquals(49, testClass.getMethod("squareInt", int.class).invoke(null, 7));
+            assertEquals(3000000000L * 3000000000L, testClass.getMethod("squareLong", long.class).invoke(null, 3000000000L));
+            assertEquals(2.25, testClass.getMethod("squareDouble", double.class).invoke(null, 1.5));
+            assertEquals(6L, testClass.getMethod("sumLongs", long[].class).invoke(null, new long[] { 1, 2, 3 }));
+            assertEquals("a", testClass.getMethod("firstWord", String[].class).invoke(null, (Object) new String[] { "a", "b" }));
+            assertEquals(3.375, testClass.getMethod("cube", double.class).invoke(null, 1.5));
+            assertEquals(128L, testClass.getMethod("seventh", long.class).invoke(null, 2L));
+        }
+        // without inlining every call goes to a specialization with primitive types, the generic methods aren't generated
+        CompilerOptions noInlining = optimizationLevel(1);
+        noInlining.inlineLimit = 0;
+        Class testClass = eval(code, noInlining);
+        assertEquals(long.class, testClass.getMethod("square$J", long.class).getReturnType());
+        assertEquals(double.class, testClass.getMethod("pow$D$I", double.class, int.class).getReturnType());
+        assertEquals(long.class, testClass.getMethod("sum$_J$J", long[].class, long.class).getReturnType());
+        assertTrue(opcodes(code, noInlining, "square$I").contains(Opcodes.IMUL));
+        for (java.lang.reflect.Method method : testClass.getDeclaredMethods())
+            assertFalse(method.getName().equals("square") || method.getName().equals("pow"));
+
+        DynamicClassLoader classLoader = evalClasses("class Numbers; twice ∷ a → a = dup +;"
+            + "class User; twice ∷ float → float = Numbers.twice;");
+        assertEquals(5.0f, classLoader.loadClass("User").getMethod("twice", float.class).invoke(null, 2.5f));
+    }
+
+    @Test(expected = CompilerException.class)
+    public void testGenericArgumentsMustAgree() throws CompilerException {
+        eval("add ∷ a a → a = +; bad ∷ int long → long = add;");
+    }
+
+    @Test public void testProfile() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        String code = "collatz ∷ int → int = 0 swap { dup 2 % 0 == { 3 * 1 + } { 2 / } if swap 1 + swap } { dup 1 ≠ } while pop;"
+            + "twice ∷ int → int = 2 *;"
+            + "quad ∷ int → int = twice twice;"
+            + "sum ∷ int → int = 0 swap { index + } times;";
+        CompilerOptions options = optimizationLevel(1);
+        options.profile = true;
+        Class testClass = eval(code, options);
+        Profile.reset();
+        assertEquals(8, testClass.getMethod("collatz", int.class).invoke(null, 6));
+        assertEquals(12, testClass.getMethod("quad", int.class).invoke(null, 3));
+        assertEquals(45, testClass.getMethod("sum", int.class).invoke(null, 10));
+        Map<String, Long> counts = Profile.counts();
+        assertEquals(1L, (long) counts.get("TestClass.collatz"));
+        assertEquals(8L, (long) count(counts, "TestClass.collatz while "));
+        assertEquals(6L, (long) count(counts, "TestClass.collatz if ", " true"));
+        assertEquals(2L, (long) count(counts, "TestClass.collatz if ", " false"));
+        // twice is inlined into quad, and its probe with it
+        assertEquals(2L, (long) counts.get("TestClass.twice"));
+        assertEquals(10L, (long) count(counts, "TestClass.sum times "));
+        assertTrue(Profile.report().contains("TestClass.collatz"));
+
+        assertFalse(opcodes(code, optimizationLevel(1), "collatz").contains(Opcodes.INVOKEDYNAMIC));
+        assertTrue(opcodes(code, options, "collatz").contains(Opcodes.INVOKEDYNAMIC));
+    }
+
+    private static Long count(Map<String, Long> counts, String prefix, String... suffix) {
+        for (Map.Entry<String, Long> entry : counts.entrySet())
+            if (entry.getKey().startsWith(prefix) && (suffix.length == 0 || entry.getKey().endsWith(suffix[0])))
+                return entry.getValue();
+        return null;
+    }
+
+    @Test public void testCountedLoops() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        String code = "sum ∷ int → int = 0 swap { index + } times;"
+            + "lsum ∷ long long → long = 0L -rot { index + } range;"
+            + "grid ∷ int → int = 0 over { over { index + } times } times nip;"
+            + "add ∷ int int → int = { 1 + } times;"
+            + "adds ∷ int → int = 0 swap { index index add + } times;";
+        for (int level = 0; level <= 2; level++) {
+            Class testClass = eval(code, optimizationLevel(level));
+            assertEquals(45, testClass.getMethod("sum", int.class).invoke(null, 10));
+            assertEquals(0, testClass.getMethod("sum", int.class).invoke(null, -1));
+            assertEquals(35L, testClass.getMethod("lsum", long.class, long.class).invoke(null, 5L, 10L));
+            assertEquals(24, testClass.getMethod("grid", int.class).invoke(null, 4));
+            assertEquals(90, testClass.getMethod("adds", int.class).invoke(null, 10));
+            List<Integer> opcodes = opcodes(code, optimizationLevel(level), "sum");
+            assertTrue(opcodes.contains(Opcodes.IINC));
+            assertTrue(opcodes.contains(Opcodes.IF_ICMPGE));
+        }
+    }
+
+    @Test public void testArrays() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        String code = "squares ∷ int[] → int[] = { dup * } map;"
+            + "total ∷ double[] → double = 0.0 { + } fold;"
+            + "weighted ∷ long[] → long = 0L { index * + } fold;"
+            + "evens ∷ int[] → int = 0 swap { 2 % 0 == { 1 + } when } each;"
+            + "negate ∷ bool[] → bool[] = { ¬ } map;"
+            + "filled ∷ int int → int[] = swap int new swap over length { 2dup index swap ! } times pop;"
+            + "second ∷ java.lang.String[] → java.lang.String = 1 @;"
+            + "size ∷ java.lang.String[] → int = length;";
+        for (int level = 0; level <= 2; level++) {
+            Class testClass = eval(code, optimizationLevel(level));
+            assertArrayEquals(new int[] { 1, 4, 9 }, (int[]) testClass.getMethod("squares", int[].class).invoke(null, new int[] { 1, 2, 3 }));
+            assertEquals(6.5, testClass.getMethod("total", double[].class).invoke(null, new double[] { 1.5, 2.0, 3.0 }));
+            assertEquals(23L, testClass.getMethod("weighted", long[].class).invoke(null, new long[] { 9, 5, 9 }));
+            assertEquals(2, testClass.getMethod("evens", int[].class).invoke(null, new int[] { 1, 2, 3, 4, 5 }));
+            assertTrue(Arrays.equals(new boolean[] { false, true }, (boolean[]) testClass.getMethod("negate", boolean[].class).invoke(null, new boolean[] { true, false })));
+            assertArrayEquals(new int[] { 7, 7, 7 }, (int[]) testClass.getMethod("filled", int.class, int.class).invoke(null, 3, 7));
+            assertEquals("b", testClass.getMethod("second", String[].class).invoke(null, (Object) new String[] { "a", "b" }));
+            assertEquals(2, testClass.getMethod("size", String[].class).invoke(null, (Object) new String[] { "a", "b" }));
+            List<Integer> opcodes = opcodes(code, optimizationLevel(level), "squares");
+            assertTrue(opcodes.contains(Opcodes.IALOAD));
+            assertTrue(opcodes.contains(Opcodes.IASTORE));
+            assertFalse(opcodes.contains(Opcodes.INVOKESTATIC));
+            assertFalse(opcodes.contains(Opcodes.INVOKEVIRTUAL));
+        }
+    }
+
+    @Test public void testTypedPrint() throws Exception {
+        String code = "show ∷ long double bool = rot print \" \" print swap print \" \" print println;";
+        for (boolean buffered : new boolean[] { false, true }) {
+            CompilerOptions options = new CompilerOptions();
+            options.bufferedOutput = buffered;
+            Class testClass = eval(code, options);
+            PrintStream stdout = System.out;
+            ByteArrayOutputStream captured = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(captured, true));
+            try {
+                testClass.getMethod("show", long.class, double.class, boolean.class).invoke(null, 5L, 2.5, true);
+                if (buffered) {
+                    assertEquals(0, captured.size());
+                    BufferedOutput.flush();
+                }
+            } finally {
+                System.setOut(stdout);
+            }
+            assertEquals("5 2.5 true" + System.getProperty("line.separator"), captured.toString());
+            // nothing is boxed on the way: the only static calls are the ones to BufferedOutput
+            List<Integer> opcodes = opcodes(code, options, "show");
+            assertEquals(buffered ? 5 : 0, Collections.frequency(opcodes, Opcodes.INVOKESTATIC));
+        }
+    }
+
+    @Test(expected = CompilerException.class)
+    public void testMapKeepsElementType() throws CompilerException {
+        eval("bad ∷ int[] → int[] = { 1.0 * } map;");
+    }
+
+    @Test(expected = CompilerException.class)
+    public void testIndexOutsideLoop() throws CompilerException {
+        eval("bad ∷ → int = index;");
+    }
+
+    @Test public void testShuffles() throws CompilerException, NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+        String code = "ri ∷ int int int → int = rot 10 * + 10 * +;"
+            + "rm ∷ long int double → double = rot - -;"
+            + "mr ∷ int int int → int = -rot 10 * + 10 * +;"
+            + "nl ∷ long int → int = nip;"
+            + "tk ∷ long double → double = tuck - -;"
+            + "dd ∷ double double → double = 2dup - - -;"
+            + "sw ∷ int int long long → long = 2swap + - -;"
+            + "pk ∷ int int int int int int → int = 5 pick 10 * + + + + + +;"
+            + "ov ∷ int long → long = over 10 * + -;"
+            + "cst ∷ → int = 1 2 3 rot 10 * + 10 * +;";
+        for (int level = 0; level <= 2; level++) {
+            Class testClass = eval(code, optimizationLevel(level));
+            assertEquals(132, testClass.getMethod("ri", int.class, int.class, int.class).invoke(null, 1, 2, 3));
+            assertEquals(-1.0, testClass.getMethod("rm", long.class, int.class, double.class).invoke(null, 1L, 2, 4.0));
+            assertEquals(213, testClass.getMethod("mr", int.class, int.class, int.class).invoke(null, 1, 2, 3));
+            assertEquals(7, testClass.getMethod("nl", long.class, int.class).invoke(null, 5L, 7));
+            assertEquals(7.0, testClass.getMethod("tk", long.class, double.class).invoke(null, 1L, 4.0));
+            assertEquals(6.0, testClass.getMethod("dd", double.class, double.class).invoke(null, 5.0, 2.0));
+            assertEquals(-87L, testClass.getMethod("sw", int.class, int.class, long.class, long.class).invoke(null, 1, 2, 10L, 100L));
+            assertEquals(31, testClass.getMethod("pk", int.class, int.class, int.class, int.class, int.class, int.class)
+                    .invoke(null, 1, 2, 3, 4, 5, 6));
+            assertEquals(-37L, testClass.getMethod("ov", int.class, long.class).invoke(null, 3, 10L));
+            assertEquals(132, testClass.getMethod("cst").invoke(null));
+        }
+        assertEquals(2, opcodes(code, optimizationLevel(1), "cst").size());
+        // over no longer goes through a local variable
+        for (int opcode : opcodes(code, optimizationLevel(1), "ov"))
+            assertTrue(opcode < Opcodes.ISTORE || opcode > Opcodes.ASTORE);
+    }
+
+    @Test public void testTargetVersion() throws CompilerException {
+        String code = "class TestClass; abs ∷ int → int = dup 0 < { 0 swap - } when;";
+        byte[] bytes = Compiler.compileClasses(code).get(0).toBytes();
+        assertEquals(52, (bytes[6] & 0xFF) << 8 | bytes[7] & 0xFF);
+        ClassNode classNode = new ClassNode();
+        new ClassReader(bytes).accept(classNode, 0);
+        boolean hasFrame = false;
+        for (AbstractInsnNode insn : ((MethodNode) classNode.methods.get(0)).instructions.toArray())
+            hasFrame |= insn instanceof FrameNode;
+        assertTrue(hasFrame);
+        CompilerOptions options = new CompilerOptions();
+        options.target = 17;
+        bytes = Compiler.compileClasses(code, options).get(0).toBytes();
+        assertEquals(61, (bytes[6] & 0xFF) << 8 | bytes[7] & 0xFF);
+    }
+
+    @Test public void testRecoversFromSyntaxErrors() throws CompilerException {
+        // the fast parse gives up at the error, the full one after it skips over it
+        List<String> names = new ArrayList<String>();
+        for (JiteClass jiteClass : Compiler.compileClasses("class One; one ∷ → int = 1; class Two; two ∷ → int = ; class Three; three ∷ → int = 3;"))
+            names.add(jiteClass.getClassName());
+        assertTrue(names.contains("One"));
+        assertTrue(names.contains("Three"));
+    }
+
+    @Test(expected = CompilerException.class)
+    public void testBranchesMustLeaveSameTypes() throws CompilerException {
+        eval("bad ∷ int → int = dup 0 < { 1 2 } { 1 } if;");
+    }
+
+    @Test(expected = CompilerException.class)
+    public void testPickNeedsConstantIndex() throws CompilerException {
+        eval("pk ∷ int int → int = pick;");
+    }
+
 }
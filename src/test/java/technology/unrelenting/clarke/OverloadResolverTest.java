@@ -0,0 +1,61 @@
+package technology.unrelenting.clarke;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class OverloadResolverTest {
+
+    private static int resolve(List<Class[]> signatures, Class... arguments) {
+        return OverloadResolver.resolve(signatures, arguments);
+    }
+
+    @Test public void testMostSpecific() {
+        List<Class[]> max = Arrays.asList(
+                new Class[] { double.class, double.class, double.class },
+                new Class[] { long.class, long.class, long.class },
+                new Class[] { int.class, int.class, int.class });
+        assertEquals(2, resolve(max, int.class, int.class));
+        assertEquals(1, resolve(max, int.class, long.class));
+        assertEquals(0, resolve(max, float.class, int.class));
+        assertEquals(OverloadResolver.NOT_APPLICABLE, resolve(max, String.class, int.class));
+
+        List<Class[]> append = Arrays.asList(
+                new Class[] { void.class, Object.class },
+                new Class[] { void.class, CharSequence.class },
+                new Class[] { void.class, String.class });
+        assertEquals(2, resolve(append, String.class));
+        assertEquals(1, resolve(append, StringBuilder.class));
+        assertEquals(0, resolve(append, Integer.class));
+    }
+
+    @Test public void testBoxingOnlyWhenNothingElseFits() {
+        List<Class[]> remove = Arrays.asList(
+                new Class[] { boolean.class, Object.class },
+                new Class[] { Object.class, int.class });
+        assertEquals(1, resolve(remove, int.class));
+        assertEquals(0, resolve(remove, Integer.class));
+        assertEquals(0, resolve(remove.subList(0, 1), int.class));
+        assertEquals(0, resolve(remove.subList(1, 2), Integer.class));
+        assertEquals(OverloadResolver.NOT_APPLICABLE, resolve(remove.subList(1, 2), Long.class));
+    }
+
+    @Test public void testAmbiguous() {
+        List<Class[]> pair = Arrays.asList(
+                new Class[] { void.class, int.class, long.class },
+                new Class[] { void.class, long.class, int.class });
+        assertEquals(OverloadResolver.AMBIGUOUS, resolve(pair, int.class, int.class));
+        assertEquals(0, resolve(pair, int.class, long.class));
+    }
+
+    @Test public void testNarrowestReturnType() {
+        List<Class[]> covariant = Arrays.asList(
+                new Class[] { Object.class, int.class },
+                new Class[] { String.class, int.class });
+        assertEquals(1, resolve(covariant, int.class));
+    }
+
+}
@@ -0,0 +1,80 @@
+package technology.unrelenting.clarke;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ReplTest {
+
+    @Test public void testStackIsKept() throws Exception {
+        Repl repl = new Repl();
+        assertEquals(Arrays.<Object>asList(1, 2L), repl.eval("1 2L"));
+        assertEquals(Arrays.<Object>asList(3L), repl.eval("swap java.lang.Long.valueOf #longValue +"));
+        assertEquals(Arrays.<Object>asList(3L, "three", true), repl.eval("\"three\" dup #length 5 =="));
+        assertEquals(Arrays.<Class>asList(long.class, String.class, boolean.class), repl.stackTypes());
+        assertEquals(Arrays.<Object>asList(3L, "three"), repl.eval("pop"));
+    }
+
+    @Test public void testDefinitions() throws Exception {
+        Repl repl = new Repl();
+        repl.eval("class Words; square ∷ int → int = dup *;");
+        assertEquals(Arrays.<Object>asList(49), repl.eval("7 Words.square"));
+        repl.eval("class Words; square ∷ int → int = dup dup * *;");
+        assertEquals(Arrays.<Object>asList(49, 8), repl.eval("2 Words.square"));
+    }
+
+    @Test public void testFailedLinesKeepTheStack() throws Exception {
+        Repl repl = new Repl();
+        repl.eval("1 0");
+        try {
+            repl.eval("+ +");
+            fail();
+        } catch (CompilerException ex) {
+            assertTrue(ex.getMessage().contains("underflow"));
+        }
+        try {
+            repl.eval("{ 1");
+            fail();
+        } catch (CompilerException ex) {
+            assertTrue(ex.getMessage().startsWith("Syntax error"));
+        }
+        try {
+            repl.eval("/");
+            fail();
+        } catch (InvocationTargetException ex) {
+            assertTrue(ex.getCause() instanceof ArithmeticException);
+        }
+        assertEquals(Arrays.<Object>asList(1, 0), repl.stack());
+    }
+
+    @Test public void testRun() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new Repl().run(new ByteArrayInputStream("1 2\n+ \"x\"\n".getBytes("UTF-8")), new PrintStream(output, true, "UTF-8"));
+        assertEquals("> 1 2\n> 3 \"x\"\n> \n", output.toString("UTF-8").replace(System.lineSeparator(), "\n"));
+    }
+
+    @Test public void testLinesAreUnloaded() throws Exception {
+        String version = System.getProperty("java.specification.version");
+        Assume.assumeTrue(!version.startsWith("1.") && Integer.parseInt(version) >= 15);
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+        Repl repl = new Repl();
+        repl.eval("0");
+        long unloaded = classLoading.getUnloadedClassCount();
+        for (int i = 0; i < 100; i++)
+            repl.eval("1 +");
+        for (int i = 0; i < 10 && classLoading.getUnloadedClassCount() - unloaded < 50; i++)
+            System.gc();
+        assertEquals(Arrays.<Object>asList(100), repl.stack());
+        assertTrue(classLoading.getUnloadedClassCount() - unloaded >= 50);
+    }
+
+}
@@ -0,0 +1,26 @@
+package technology.unrelenting.clarke;
+
+import org.junit.Test;
+
+import static me.qmx.jitescript.internal.org.objectweb.asm.Opcodes.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class StackShufflerTest {
+
+    @Test public void testShortestSequences() {
+        assertArrayEquals(new int[] { DUP2 }, StackShuffler.instructions(new boolean[] { true }, StackShuffler.forOperation(ClarkeLexer.Dup)));
+        assertArrayEquals(new int[] { DUP2, POP }, StackShuffler.instructions(new boolean[] { false, false }, StackShuffler.forOperation(ClarkeLexer.Over)));
+        assertArrayEquals(new int[] { DUP2_X2 }, StackShuffler.instructions(new boolean[] { true, true }, StackShuffler.forOperation(ClarkeLexer.Tuck)));
+        assertArrayEquals(new int[] { DUP2 }, StackShuffler.instructions(new boolean[] { false, false }, StackShuffler.forOperation(ClarkeLexer.TwoDup)));
+        assertArrayEquals(new int[] { DUP_X2, POP }, StackShuffler.instructions(new boolean[] { false, false, false }, StackShuffler.forOperation(ClarkeLexer.MinusRot)));
+        assertArrayEquals(new int[] { DUP_X1 }, StackShuffler.instructions(new boolean[] { false, false }, StackShuffler.forOperation(ClarkeLexer.Tuck)));
+        assertArrayEquals(new int[] { DUP2 }, StackShuffler.instructions(new boolean[] { true }, StackShuffler.pick(0)));
+    }
+
+    @Test public void testUnreachableValues() {
+        // the long is below four slots, out of reach of every stack instruction
+        assertNull(StackShuffler.instructions(new boolean[] { true, false, true }, StackShuffler.forOperation(ClarkeLexer.Rot)));
+    }
+
+}
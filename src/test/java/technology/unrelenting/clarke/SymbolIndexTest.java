@@ -0,0 +1,77 @@
+package technology.unrelenting.clarke;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SymbolIndexTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    public static class Library {
+        public static int add(int a, int b) { return a + b; }
+        public static int add(int a, int b, int c) { return a + b + c; }
+        public int instanceAdd(int a, int b) { return a + b; }
+    }
+
+    // loads everything except Library, to show when a lookup had to reflect on it
+    private static class NoLibraryClassLoader extends ClassLoader {
+        NoLibraryClassLoader() {
+            super(SymbolIndexTest.class.getClassLoader());
+        }
+
+        @Override protected Class<?> loadClass(String name, boolean resolve)
+            throws ClassNotFoundException {
+            if (name.equals(Library.class.getName()))
+                throw new ClassNotFoundException(name);
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    @Test public void testOverloadsWithMostArgumentsFirst() throws ClassNotFoundException {
+        SymbolIndex index = new SymbolIndex(getClass().getClassLoader());
+        List<Class[]> overloads = index.staticMethods(Library.class.getName(), "add", 3);
+        assertEquals(2, overloads.size());
+        assertArrayEquals(new Class[] { int.class, int.class, int.class, int.class }, overloads.get(0));
+        assertArrayEquals(new Class[] { int.class, int.class, int.class }, overloads.get(1));
+        assertEquals(1, index.staticMethods(Library.class.getName(), "add", 2).size());
+        assertTrue(index.staticMethods(Library.class.getName(), "add", 1).isEmpty());
+        assertTrue(index.staticMethods(Library.class.getName(), "instanceAdd", 3).isEmpty());
+    }
+
+    @Test public void testInstanceMethods() throws ClassNotFoundException {
+        SymbolIndex index = new SymbolIndex(getClass().getClassLoader());
+        List<Class[]> overloads = index.instanceMethods(Library.class.getName(), "instanceAdd", 2);
+        assertEquals(1, overloads.size());
+        assertArrayEquals(new Class[] { int.class, int.class, int.class }, overloads.get(0));
+        assertTrue(index.instanceMethods(Library.class.getName(), "add", 3).isEmpty());
+        // inherited from Object
+        assertEquals(1, index.instanceMethods(Library.class.getName(), "hashCode", 0).size());
+    }
+
+    @Test public void testSavedIndexAvoidsReflection() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("symbols.properties");
+        SymbolIndex index = new SymbolIndex(getClass().getClassLoader());
+        index.staticMethods(Library.class.getName(), "add", 3);
+        index.save(file);
+
+        SymbolIndex unindexed = new SymbolIndex(new NoLibraryClassLoader());
+        try {
+            unindexed.staticMethods(Library.class.getName(), "add", 3);
+            fail("Library should not be loadable");
+        } catch (ClassNotFoundException expected) {
+        }
+
+        SymbolIndex loaded = new SymbolIndex(new NoLibraryClassLoader());
+        loaded.load(file);
+        List<Class[]> overloads = loaded.staticMethods(Library.class.getName(), "add", 3);
+        assertEquals(2, overloads.size());
+        assertArrayEquals(new Class[] { int.class, int.class, int.class, int.class }, overloads.get(0));
+    }
+
+}